@@ -0,0 +1,234 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Limits the number of heavy hook evaluations running at the same time on this node, so that a burst of large
+ * pushes cannot starve the other git operations of Bitbucket.
+ *
+ * Evaluations beyond the limit are either rejected right away or queued, depending on the configured policy.
+ * Queued evaluations are admitted round robin by key, so a single busy repository cannot delay the pushes to all
+ * others. The hooks use the repository as key, so all users pushing to the same repository share its turns.
+ * Queue depth and wait times are exposed as the MBean {@value #OBJECT_NAME}.
+ */
+public class AdmissionController implements AdmissionControllerMBean, LifecycleAware {
+
+    static final String OBJECT_NAME = "org.christiangalsterer.stash.filehooks:type=AdmissionController";
+    static final String REJECTED_MESSAGE = "The server is too busy to check this change right now, please try again later.";
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+    enum Policy {
+        /**
+         * Queue evaluations until a permit is available or the maximum wait time elapsed.
+         */
+        WAIT,
+        /**
+         * Reject evaluations when no permit is available.
+         */
+        REJECT
+    }
+
+    private final int permits;
+    private final Policy policy;
+    private final long maxWaitMillis;
+    private final int maxQueued;
+
+    // Queued tickets by key, in the order keys are served
+    private final Map<String, Deque<Ticket>> queues = new LinkedHashMap<>();
+    private int queued;
+    private int running;
+    private long admittedCount;
+    private long rejectedCount;
+    private long totalWaitMillis;
+    private long maxWait;
+
+    public AdmissionController(FileHooksConfig config) {
+        this(config.getAdmissionPermits(), config.getAdmissionPolicy(), config.getAdmissionMaxWaitMillis(),
+                config.getAdmissionMaxQueued());
+    }
+
+    AdmissionController(int permits, Policy policy, long maxWaitMillis, int maxQueued) {
+        this.permits = permits;
+        this.policy = policy;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Admits an evaluation, waiting for a permit if the policy allows it.
+     *
+     * @param key key to queue fairly by
+     * @return permit to close when the evaluation is done, or empty if the evaluation was rejected
+     * @throws IllegalStateException if the thread was interrupted while waiting
+     */
+    Optional<Permit> admit(String key) {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            if (running < permits && queued == 0) {
+                running++;
+                admittedCount++;
+                return Optional.of(new Permit());
+            }
+            if (policy == Policy.REJECT || queued >= maxQueued) {
+                rejectedCount++;
+                return Optional.empty();
+            }
+
+            Ticket ticket = new Ticket();
+            queues.computeIfAbsent(key, k -> new ArrayDeque<>()).add(ticket);
+            queued++;
+            try {
+                long remaining = maxWaitMillis;
+                while (!ticket.granted && remaining > 0) {
+                    wait(remaining);
+                    remaining = start + maxWaitMillis - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!ticket.granted) {
+                    // Not a rejection, the server is not necessarily busy
+                    dequeue(key, ticket);
+                    throw new IllegalStateException("Interrupted while waiting for admission", e);
+                }
+            }
+
+            if (!ticket.granted) {
+                dequeue(key, ticket);
+                rejectedCount++;
+                return Optional.empty();
+            }
+            long waited = System.currentTimeMillis() - start;
+            totalWaitMillis += waited;
+            maxWait = Math.max(maxWait, waited);
+            admittedCount++;
+            return Optional.of(new Permit());
+        }
+    }
+
+    private void dequeue(String key, Ticket ticket) {
+        Deque<Ticket> queue = queues.get(key);
+        queue.remove(ticket);
+        if (queue.isEmpty()) {
+            queues.remove(key);
+        }
+        queued--;
+    }
+
+    private synchronized void release() {
+        running--;
+        while (running < permits && queued > 0) {
+            Iterator<Map.Entry<String, Deque<Ticket>>> keys = queues.entrySet().iterator();
+            Map.Entry<String, Deque<Ticket>> next = keys.next();
+            keys.remove();
+            Ticket ticket = next.getValue().poll();
+            if (!next.getValue().isEmpty()) {
+                // The key goes to the end of the line
+                queues.put(next.getKey(), next.getValue());
+            }
+            queued--;
+            running++;
+            ticket.granted = true;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public int getPermits() {
+        return permits;
+    }
+
+    @Override
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    @Override
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    @Override
+    public synchronized long getMaxWaitMillis() {
+        return maxWait;
+    }
+
+    @Override
+    public void onStart() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // Left behind by a previous version of the plugin which was not stopped cleanly
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Could not register admission control metrics", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not unregister admission control metrics", e);
+        }
+    }
+
+    private static class Ticket {
+        private boolean granted;
+    }
+
+    /**
+     * Permit of an admitted evaluation, to be closed once it is done.
+     */
+    class Permit implements AutoCloseable {
+
+        private boolean closed;
+
+        @Override
+        public void close() {
+            synchronized (AdmissionController.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * Metrics of the {@link AdmissionController}, exposed via JMX.
+ */
+public interface AdmissionControllerMBean {
+
+    int getPermits();
+
+    int getRunning();
+
+    int getQueued();
+
+    long getAdmittedCount();
+
+    long getRejectedCount();
+
+    long getTotalWaitMillis();
+
+    long getMaxWaitMillis();
+}
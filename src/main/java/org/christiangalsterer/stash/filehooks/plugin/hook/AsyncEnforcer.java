@@ -0,0 +1,447 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.event.repository.RepositoryPushEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Verifies pushes after they were accepted, for repositories whose pushes must not wait for the hooks.
+ *
+ * Hooks prepare the verification of a push in the pre-receive phase, and it is queued once the push was
+ * accepted, when its {@link RepositoryPushEvent} is raised. Verifications of pushes which were rejected are never
+ * queued and expire. Verifications run on a bounded queue. Refs found violating a hook are flagged in the
+ * {@link FlagStore}, and the merge checks of the hooks veto pull requests from flagged refs. A flag is lifted when
+ * the ref is deleted, or when a later push of the ref passed and the ref no longer violates the hook, by default
+ * because it was rewritten so that the flagged commit is no longer part of it.
+ *
+ * An accepted push is never left unverified silently. If its verification cannot be queued, or was dropped from the
+ * prepared verifications before the push was accepted, its refs are flagged as unverified, like violating refs. If
+ * only some of the prepared ref changes of a push were applied, only those are verified.
+ * Queue backlog and verification lag are exposed as the MBean {@value #OBJECT_NAME}.
+ */
+public class AsyncEnforcer implements AsyncEnforcerMBean, LifecycleAware {
+
+    static final String OBJECT_NAME = "org.christiangalsterer.stash.filehooks:type=AsyncEnforcer";
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncEnforcer.class);
+
+    // Long enough for any push to be accepted after its pre-receive hooks ran
+    private static final long PREPARED_TTL_MINUTES = 30;
+    // Pushes whose verification was dropped are still told apart from rejected ones if accepted within this time
+    private static final long DROPPED_TTL_HOURS = 24;
+
+    private final ChangesetService changesetService;
+    private final FlagStore store;
+    private final SecurityService securityService;
+    private final EventPublisher eventPublisher;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final Cache<String, List<Verification>> prepared;
+    private final Cache<String, List<Verification>> dropped;
+
+    private long verifiedCount;
+    private long violationCount;
+    private long failedCount;
+    private long fallbackCount;
+    private long unverifiedCount;
+    private long lastLagMillis;
+    private long maxLagMillis;
+
+    public AsyncEnforcer(ChangesetService changesetService, PluginSettingsFactory pluginSettingsFactory, SecurityService securityService,
+                         EventPublisher eventPublisher, FileHooksConfig config) {
+        this(changesetService, new FlagStore(pluginSettingsFactory), securityService, eventPublisher, config.getAsyncThreads(),
+                config.getAsyncMaxQueued());
+    }
+
+    AsyncEnforcer(ChangesetService changesetService, FlagStore store, SecurityService securityService, EventPublisher eventPublisher,
+                  int threads, int maxQueued) {
+        this.changesetService = changesetService;
+        this.store = store;
+        this.securityService = securityService;
+        this.eventPublisher = eventPublisher;
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+                new ThreadFactoryBuilder().setNameFormat("filehooks-verifier-%d").setDaemon(true).build());
+        this.dropped = CacheBuilder.newBuilder()
+                .maximumSize(maxQueued)
+                .expireAfterWrite(DROPPED_TTL_HOURS, TimeUnit.HOURS)
+                .build();
+        this.prepared = CacheBuilder.newBuilder()
+                .maximumSize(maxQueued)
+                .expireAfterWrite(PREPARED_TTL_MINUTES, TimeUnit.MINUTES)
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    /**
+     * Prepares the verification of a push in its pre-receive phase. Each ref change is verified on its own, so
+     * that only the refs which introduce violations are flagged. A flag of a ref is kept while the ref still
+     * contains the flagged commit.
+     *
+     * @param repository repository pushed to
+     * @param hook key of the hook verifying the push
+     * @param refChanges ref changes of the push
+     * @param check check of a single ref change, writing its report to the writer and returning false on violations
+     * @return false if the queue is full, the push has to be checked right away then
+     */
+    boolean prepare(Repository repository, String hook, Collection<RefChange> refChanges, BiPredicate<RefChange, PrintWriter> check) {
+        return prepare(repository, hook, refChanges, check,
+                (flag, refChange) -> containsFlaggedCommit(repository, flag, refChange));
+    }
+
+    /**
+     * Prepares the verification of a push in its pre-receive phase, see {@link #prepare(Repository, String, Collection, BiPredicate)}.
+     *
+     * @param stillViolating tells whether the ref of a passing ref change still violates the hook, its flag is lifted otherwise
+     */
+    boolean prepare(Repository repository, String hook, Collection<RefChange> refChanges, BiPredicate<RefChange, PrintWriter> check,
+                    BiPredicate<FlagStore.Flag, RefChange> stillViolating) {
+        if (executor.getQueue().remainingCapacity() == 0) {
+            synchronized (this) {
+                fallbackCount++;
+            }
+            // The push is checked right away, a dropped verification of an earlier attempt must not flag it
+            dropped.invalidate(toKey(repository, refChanges));
+            return false;
+        }
+        Verification verification = new Verification(repository, hook, new ArrayList<>(refChanges), check, stillViolating);
+        prepared.asMap().compute(toKey(repository, refChanges), (key, verifications) -> {
+            List<Verification> list = verifications == null ? new ArrayList<>() : verifications;
+            list.add(verification);
+            return list;
+        });
+        return true;
+    }
+
+    @EventListener
+    public void onPush(RepositoryPushEvent event) {
+        accepted(event.getRepository(), event.getRefChanges());
+    }
+
+    /**
+     * Queues the verifications prepared for the push, which was accepted. Refs of the push are flagged as unverified
+     * if their verification cannot be queued or was dropped before the push was accepted.
+     */
+    void accepted(Repository repository, Collection<RefChange> refChanges) {
+        // Drops expired verifications, so that they are found among the dropped ones
+        prepared.cleanUp();
+        String key = toKey(repository, refChanges);
+        List<Verification> verifications = prepared.asMap().remove(key);
+        if (verifications == null) {
+            verifications = removePartiallyApplied(prepared, repository, refChanges);
+        }
+        if (verifications != null) {
+            queue(verifications);
+            return;
+        }
+
+        List<Verification> unverified = dropped.asMap().remove(key);
+        if (unverified == null) {
+            unverified = removePartiallyApplied(dropped, repository, refChanges);
+        }
+        if (unverified != null) {
+            for (Verification verification : unverified) {
+                flagUnverified(verification, "its verification was dropped before the push was accepted");
+            }
+        }
+    }
+
+    /**
+     * Finds the verifications of a push of which only some ref changes were applied, e.g. because git could not
+     * update all refs, and restricts them to the applied ref changes.
+     *
+     * @return verifications of the applied ref changes, or null if none were prepared
+     */
+    private List<Verification> removePartiallyApplied(Cache<String, List<Verification>> verifications, Repository repository,
+                                                      Collection<RefChange> refChanges) {
+        Set<String> applied = refChanges.stream()
+                .map(refChange -> PushAnalysisContext.toKey(Collections.singletonList(refChange)))
+                .collect(Collectors.toSet());
+        Iterator<Map.Entry<String, List<Verification>>> entries = verifications.asMap().entrySet().iterator();
+        while (entries.hasNext()) {
+            List<Verification> candidates = entries.next().getValue();
+            Verification first = candidates.get(0);
+            if (first.repository.getId() == repository.getId() && first.getRefChangeKeys().containsAll(applied)) {
+                entries.remove();
+                log.warn("Only {} of {} ref changes of the push to {} were applied, verifying them only", applied.size(),
+                        first.refChanges.size(), repository);
+                return candidates.stream()
+                        .map(verification -> verification.restrictTo(applied))
+                        .collect(Collectors.toList());
+            }
+        }
+        return null;
+    }
+
+    private void queue(List<Verification> verifications) {
+        for (Verification verification : verifications) {
+            try {
+                executor.execute(verification);
+            } catch (RejectedExecutionException e) {
+                // Verifying on the event thread would hold up the events of all other pushes
+                flagUnverified(verification, "the verification queue was full");
+            }
+        }
+    }
+
+    /**
+     * Keeps prepared verifications which were evicted or expired, in case their push is accepted after all.
+     * Verifications of rejected pushes expire as well, so they are only flagged once their push was accepted.
+     */
+    private void onRemoval(RemovalNotification<String, List<Verification>> notification) {
+        if (notification.wasEvicted() && notification.getKey() != null && notification.getValue() != null) {
+            log.debug("Verification of push {} was dropped ({}) before the push was accepted", notification.getKey(),
+                    notification.getCause());
+            dropped.put(notification.getKey(), notification.getValue());
+        }
+    }
+
+    /**
+     * Flags the refs of an accepted push which cannot be verified. Refs flagged as violating already keep their flag.
+     */
+    private void flagUnverified(Verification verification, String reason) {
+        synchronized (this) {
+            unverifiedCount++;
+        }
+        log.warn("Accepted push to {} is not verified with {} because {}, merging it is blocked", verification.repository,
+                verification.hook, reason);
+        for (RefChange refChange : verification.refChanges) {
+            String refId = refChange.getRef().getId();
+            if (refChange.getType() == RefChangeType.DELETE) {
+                store.clear(verification.repository, verification.hook, refId);
+            } else if (!store.get(verification.repository, verification.hook, refId).isPresent()) {
+                store.flag(verification.repository, new FlagStore.Flag(verification.hook, refId, refChange.getToHash(),
+                        String.format("Push of commit %s could not be verified because %s.%n", refChange.getToHash(), reason)));
+            }
+        }
+    }
+
+    /**
+     * @return true if the ref still contains the flagged commit after the ref change
+     */
+    boolean containsFlaggedCommit(Repository repository, FlagStore.Flag flag, RefChange refChange) {
+        return changesetService.isAncestor(repository, flag.getCommitId(), refChange.getToHash());
+    }
+
+    /**
+     * @return the flag of the source ref of the pull request, if the ref was found violating the hook
+     */
+    Optional<FlagStore.Flag> getFlag(PullRequest pullRequest, String hook) {
+        return store.get(pullRequest.getFromRef().getRepository(), hook, pullRequest.getFromRef().getId());
+    }
+
+    void verify(Repository repository, String hook, RefChange refChange, BiPredicate<RefChange, PrintWriter> check,
+                BiPredicate<FlagStore.Flag, RefChange> stillViolating) {
+        String refId = refChange.getRef().getId();
+        if (refChange.getType() == RefChangeType.DELETE) {
+            store.clear(repository, hook, refId);
+            return;
+        }
+
+        StringWriter report = new StringWriter();
+        boolean passed;
+        try (PrintWriter out = new PrintWriter(report)) {
+            passed = check.test(refChange, out);
+        }
+        Optional<FlagStore.Flag> flag = store.get(repository, hook, refId);
+        if (!passed) {
+            synchronized (this) {
+                violationCount++;
+            }
+            // A flag stays on the first violating commit for as long as the ref still contains it
+            boolean stillContained = flag.isPresent() && containsFlaggedCommit(repository, flag.get(), refChange);
+            String commitId = stillContained ? flag.get().getCommitId() : refChange.getToHash();
+            store.flag(repository, new FlagStore.Flag(hook, refId, commitId, report.toString()));
+            log.warn("Accepted push to {} in {} violates {}, merging it is blocked", refId, repository, hook);
+        } else if (flag.isPresent() && !stillViolating.test(flag.get(), refChange)) {
+            store.clear(repository, hook, refId);
+        }
+    }
+
+    private static String toKey(Repository repository, Collection<RefChange> refChanges) {
+        return repository.getId() + "|" + PushAnalysisContext.toKey(refChanges);
+    }
+
+    /**
+     * Verification of a single push, remembering when the push was accepted.
+     */
+    private class Verification implements Runnable {
+
+        private final long accepted = System.currentTimeMillis();
+        private final Repository repository;
+        private final String hook;
+        private final List<RefChange> refChanges;
+        private final BiPredicate<RefChange, PrintWriter> check;
+        private final BiPredicate<FlagStore.Flag, RefChange> stillViolating;
+
+        Verification(Repository repository, String hook, List<RefChange> refChanges, BiPredicate<RefChange, PrintWriter> check,
+                     BiPredicate<FlagStore.Flag, RefChange> stillViolating) {
+            this.repository = repository;
+            this.hook = hook;
+            this.refChanges = refChanges;
+            this.check = check;
+            this.stillViolating = stillViolating;
+        }
+
+        Set<String> getRefChangeKeys() {
+            return refChanges.stream()
+                    .map(refChange -> PushAnalysisContext.toKey(Collections.singletonList(refChange)))
+                    .collect(Collectors.toSet());
+        }
+
+        /**
+         * @return verification of the given ref changes of this push only
+         */
+        Verification restrictTo(Set<String> refChangeKeys) {
+            List<RefChange> applied = refChanges.stream()
+                    .filter(refChange -> refChangeKeys.contains(PushAnalysisContext.toKey(Collections.singletonList(refChange))))
+                    .collect(Collectors.toList());
+            return new Verification(repository, hook, applied, check, stillViolating);
+        }
+
+        @Override
+        public void run() {
+            for (RefChange refChange : refChanges) {
+                try {
+                    securityService.withPermission(Permission.REPO_READ, "Verifying accepted push").call(() -> {
+                        verify(repository, hook, refChange, check, stillViolating);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    synchronized (AsyncEnforcer.this) {
+                        failedCount++;
+                    }
+                    log.error("Could not verify push to {} in {} with {}", refChange.getRef().getId(), repository, hook, e);
+                }
+            }
+            long lag = System.currentTimeMillis() - accepted;
+            synchronized (AsyncEnforcer.this) {
+                verifiedCount++;
+                lastLagMillis = lag;
+                maxLagMillis = Math.max(maxLagMillis, lag);
+            }
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getOldestQueuedMillis() {
+        Runnable oldest = executor.getQueue().peek();
+        return oldest instanceof Verification ? System.currentTimeMillis() - ((Verification) oldest).accepted : 0;
+    }
+
+    @Override
+    public synchronized long getVerifiedCount() {
+        return verifiedCount;
+    }
+
+    @Override
+    public synchronized long getViolationCount() {
+        return violationCount;
+    }
+
+    @Override
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public synchronized long getFallbackCount() {
+        return fallbackCount;
+    }
+
+    @Override
+    public synchronized long getUnverifiedCount() {
+        return unverifiedCount;
+    }
+
+    @Override
+    public synchronized long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    @Override
+    public synchronized long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    @Override
+    public void onStart() {
+        eventPublisher.register(this);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // Left behind by a previous version of the plugin which was not stopped cleanly
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Could not register asynchronous enforcement metrics", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        eventPublisher.unregister(this);
+        executor.shutdownNow();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not unregister asynchronous enforcement metrics", e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * Metrics of the {@link AsyncEnforcer}, exposed via JMX.
+ */
+public interface AsyncEnforcerMBean {
+
+    int getThreads();
+
+    int getRunning();
+
+    int getQueued();
+
+    long getOldestQueuedMillis();
+
+    long getVerifiedCount();
+
+    long getViolationCount();
+
+    long getFailedCount();
+
+    long getFallbackCount();
+
+    long getUnverifiedCount();
+
+    long getLastLagMillis();
+
+    long getMaxLagMillis();
+}
@@ -0,0 +1,90 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Progress and results of a repository audit.
+ */
+public class AuditReport {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final State state;
+    private final Set<String> completedTips;
+    private final String currentTip;
+    private final long currentTipCommits;
+    private final List<AuditViolation> violations;
+    private final boolean truncated;
+
+    AuditReport(State state, Set<String> completedTips, String currentTip, long currentTipCommits, List<AuditViolation> violations,
+                boolean truncated) {
+        this.state = state;
+        this.completedTips = Collections.unmodifiableSet(completedTips);
+        this.currentTip = currentTip;
+        this.currentTipCommits = currentTipCommits;
+        this.violations = Collections.unmodifiableList(violations);
+        this.truncated = truncated;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return ids of the ref tips whose history has been audited completely
+     */
+    public Set<String> getCompletedTips() {
+        return completedTips;
+    }
+
+    /**
+     * @return id of the ref tip whose history has been audited in part, e.g. when the audit was interrupted
+     */
+    public Optional<String> getCurrentTip() {
+        return Optional.ofNullable(currentTip);
+    }
+
+    /**
+     * @return number of commits of the {@link #getCurrentTip() current tip} audited so far
+     */
+    public long getCurrentTipCommits() {
+        return currentTipCommits;
+    }
+
+    public List<AuditViolation> getViolations() {
+        return violations;
+    }
+
+    /**
+     * @return true when more violations were found than the report is allowed to store
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public List<AuditViolation> getViolations(AuditViolation.Reason reason) {
+        return violations.stream().filter(violation -> violation.getReason() == reason).collect(Collectors.toList());
+    }
+
+    public List<AuditViolation> getViolationsLargerThan(long size) {
+        return violations.stream().filter(violation -> violation.getSize() > size).collect(Collectors.toList());
+    }
+
+    /**
+     * @return total size of all distinct objects violating the size rule, e.g. to size an LFS migration
+     */
+    public long getTotalOversizedBytes() {
+        return violations.stream()
+                .filter(violation -> violation.getReason() == AuditViolation.Reason.SIZE)
+                .collect(Collectors.toMap(AuditViolation::getContentId, AuditViolation::getSize, (a, b) -> a))
+                .values().stream()
+                .mapToLong(Long::longValue)
+                .sum();
+    }
+}
@@ -0,0 +1,86 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.google.common.base.Strings;
+
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Rules a repository audit checks existing files against.
+ */
+public class AuditSetting implements TreeRules {
+
+    public enum Scope {
+        /**
+         * All files in the history of all branches and tags.
+         */
+        HISTORY,
+        /**
+         * Only the files at the tips of all branches and tags.
+         */
+        TIPS
+    }
+
+    private Long size;
+    private Optional<Pattern> namePattern;
+    private Scope scope;
+
+    /**
+     * @param size maximum allowed file size in bytes, or null to not check sizes
+     * @param namePattern pattern for forbidden paths, or null or empty to not check paths
+     */
+    public AuditSetting(Long size, String namePattern) {
+        this(size, namePattern, Scope.HISTORY);
+    }
+
+    /**
+     * @param size maximum allowed file size in bytes, or null to not check sizes
+     * @param namePattern pattern for forbidden paths, or null or empty to not check paths
+     * @param scope files to audit
+     */
+    public AuditSetting(Long size, String namePattern, Scope scope) {
+        this.size = size;
+        this.namePattern = Strings.isNullOrEmpty(namePattern) ? Optional.empty() : Optional.of(Pattern.compile(namePattern));
+        this.scope = scope;
+    }
+
+    Long getSize() {
+        return size;
+    }
+
+    Optional<Pattern> getNamePattern() {
+        return namePattern;
+    }
+
+    Scope getScope() {
+        return scope;
+    }
+
+    @Override
+    public String getFingerprint() {
+        return "audit:" + (size == null ? "" : size) + ":" + namePattern.map(Pattern::pattern).orElse("");
+    }
+
+    public boolean hasSizeLimit() {
+        return size != null;
+    }
+
+    public boolean isTooLarge(long objectSize) {
+        return size != null && objectSize > size;
+    }
+
+    @Override
+    public boolean hasSizeLimit(String path) {
+        return hasSizeLimit();
+    }
+
+    @Override
+    public boolean isTooLarge(String path, long objectSize) {
+        return isTooLarge(objectSize);
+    }
+
+    @Override
+    public boolean isForbidden(String path) {
+        return namePattern.isPresent() && namePattern.get().matcher(path).find();
+    }
+}
@@ -0,0 +1,162 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Persists repository audit reports in the plugin settings, so that audits survive restarts and can be
+ * resumed from their last checkpoint.
+ */
+class AuditStore {
+
+    private static final String PREFIX = "org.christiangalsterer.stash-filehooks-plugin.audit.";
+    private static final String KEY_REPOSITORIES = PREFIX + "repositories";
+    private static final String KEY_STATE = ".state";
+    private static final String KEY_TIPS = ".tips";
+    private static final String KEY_VIOLATIONS = ".violations";
+    private static final String KEY_TRUNCATED = ".truncated";
+    private static final String KEY_PROGRESS = ".progress";
+    private static final String KEY_SIZE = ".size";
+    private static final String KEY_PATTERN = ".pattern";
+    private static final String KEY_SCOPE = ".scope";
+
+    private final PluginSettingsFactory pluginSettingsFactory;
+
+    AuditStore(PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+    }
+
+    /**
+     * Registers an audit, keeping the checkpoint of a previous history audit with the same setting so it continues
+     * where it stopped and only looks at history added since. Tip audits always start over, as tips move.
+     */
+    synchronized void start(Repository repository, AuditSetting setting) {
+        PluginSettings settings = pluginSettingsFactory.createGlobalSettings();
+        String prefix = prefix(repository.getId());
+        String size = setting.getSize() == null ? "" : setting.getSize().toString();
+        String pattern = setting.getNamePattern().map(p -> p.pattern()).orElse("");
+        String scope = setting.getScope().name();
+
+        if (!size.equals(getString(settings, prefix + KEY_SIZE)) || !pattern.equals(getString(settings, prefix + KEY_PATTERN))
+                || !scope.equals(getScope(settings, prefix)) || setting.getScope() == AuditSetting.Scope.TIPS) {
+            settings.remove(prefix + KEY_TIPS);
+            settings.remove(prefix + KEY_PROGRESS);
+            settings.remove(prefix + KEY_VIOLATIONS);
+            settings.remove(prefix + KEY_TRUNCATED);
+        }
+        settings.put(prefix + KEY_SIZE, size);
+        settings.put(prefix + KEY_PATTERN, pattern);
+        settings.put(prefix + KEY_SCOPE, scope);
+        settings.put(prefix + KEY_STATE, AuditReport.State.QUEUED.name());
+
+        List<String> repositories = getList(settings, KEY_REPOSITORIES);
+        if (!repositories.contains(String.valueOf(repository.getId()))) {
+            repositories.add(String.valueOf(repository.getId()));
+            settings.put(KEY_REPOSITORIES, repositories);
+        }
+    }
+
+    synchronized void setState(Repository repository, AuditReport.State state) {
+        pluginSettingsFactory.createGlobalSettings().put(prefix(repository.getId()) + KEY_STATE, state.name());
+    }
+
+    synchronized void checkpoint(Repository repository, Set<String> completedTips, List<AuditViolation> violations, boolean truncated) {
+        checkpoint(repository, completedTips, null, 0, violations, truncated);
+    }
+
+    /**
+     * @param currentTip tip whose history is audited in part, or null if all audited tips are complete
+     * @param currentTipCommits number of commits of the current tip audited, in the order git walks them
+     */
+    synchronized void checkpoint(Repository repository, Set<String> completedTips, String currentTip, long currentTipCommits,
+                                 List<AuditViolation> violations, boolean truncated) {
+        PluginSettings settings = pluginSettingsFactory.createGlobalSettings();
+        String prefix = prefix(repository.getId());
+        settings.put(prefix + KEY_TIPS, new ArrayList<>(completedTips));
+        if (currentTip == null) {
+            settings.remove(prefix + KEY_PROGRESS);
+        } else {
+            settings.put(prefix + KEY_PROGRESS, currentTip + "\t" + currentTipCommits);
+        }
+        settings.put(prefix + KEY_VIOLATIONS, violations.stream().map(AuditViolation::serialize).collect(Collectors.toList()));
+        settings.put(prefix + KEY_TRUNCATED, String.valueOf(truncated));
+    }
+
+    synchronized Optional<AuditReport> load(int repositoryId) {
+        PluginSettings settings = pluginSettingsFactory.createGlobalSettings();
+        String prefix = prefix(repositoryId);
+        String state = getString(settings, prefix + KEY_STATE);
+        if (state == null) {
+            return Optional.empty();
+        }
+        String progress = getString(settings, prefix + KEY_PROGRESS);
+        String[] split = progress == null ? null : progress.split("\t", 2);
+        return Optional.of(new AuditReport(
+                AuditReport.State.valueOf(state),
+                new LinkedHashSet<>(getList(settings, prefix + KEY_TIPS)),
+                split == null ? null : split[0],
+                split == null ? 0 : Long.parseLong(split[1]),
+                getList(settings, prefix + KEY_VIOLATIONS).stream().map(AuditViolation::deserialize).collect(Collectors.toList()),
+                Boolean.parseBoolean(getString(settings, prefix + KEY_TRUNCATED))));
+    }
+
+    synchronized Optional<AuditSetting> loadSetting(int repositoryId) {
+        PluginSettings settings = pluginSettingsFactory.createGlobalSettings();
+        String prefix = prefix(repositoryId);
+        String size = getString(settings, prefix + KEY_SIZE);
+        if (size == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new AuditSetting(size.isEmpty() ? null : Long.valueOf(size), getString(settings, prefix + KEY_PATTERN),
+                AuditSetting.Scope.valueOf(getScope(settings, prefix))));
+    }
+
+    /**
+     * Audits stored before scopes were introduced always covered the history.
+     */
+    private static String getScope(PluginSettings settings, String prefix) {
+        String scope = getString(settings, prefix + KEY_SCOPE);
+        return scope == null ? AuditSetting.Scope.HISTORY.name() : scope;
+    }
+
+    /**
+     * @return ids of the repositories whose audit was queued or running when it was last checkpointed
+     */
+    synchronized Collection<Integer> getUnfinished() {
+        PluginSettings settings = pluginSettingsFactory.createGlobalSettings();
+        return getList(settings, KEY_REPOSITORIES).stream()
+                .map(Integer::valueOf)
+                .filter(id -> {
+                    String state = getString(settings, prefix(id) + KEY_STATE);
+                    return Objects.equals(state, AuditReport.State.QUEUED.name())
+                            || Objects.equals(state, AuditReport.State.RUNNING.name());
+                })
+                .collect(Collectors.toList());
+    }
+
+    private static String prefix(int repositoryId) {
+        return PREFIX + repositoryId;
+    }
+
+    private static String getString(PluginSettings settings, String key) {
+        Object value = settings.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getList(PluginSettings settings, String key) {
+        Object value = settings.get(key);
+        return value instanceof List ? new ArrayList<>((List<String>) value) : new ArrayList<>(Collections.<String>emptyList());
+    }
+}
@@ -0,0 +1,48 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * A file found by a repository audit which violates the audited rules.
+ */
+public class AuditViolation {
+
+    public enum Reason {
+        SIZE, NAME
+    }
+
+    private final String contentId;
+    private final String path;
+    private final long size;
+    private final Reason reason;
+
+    AuditViolation(String contentId, String path, long size, Reason reason) {
+        this.contentId = contentId;
+        this.path = path;
+        this.size = size;
+        this.reason = reason;
+    }
+
+    public String getContentId() {
+        return contentId;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    String serialize() {
+        return contentId + "\t" + size + "\t" + reason + "\t" + path;
+    }
+
+    static AuditViolation deserialize(String value) {
+        String[] split = value.split("\t", 4);
+        return new AuditViolation(split[0], split[3], Long.parseLong(split[1]), Reason.valueOf(split[2]));
+    }
+}
@@ -0,0 +1,188 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.Command;
+import com.atlassian.bitbucket.scm.git.GitScmConfig;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Sizes blobs for all hooks of the plugin, reading the object database directly where possible and asking
+ * {@code git cat-file --batch-check} for the rest.
+ *
+ * One {@link PackObjectSizeReader} is kept per recently used repository and replaced once packs of the repository
+ * were added or removed. Objects of a push which are still in quarantine are read from the quarantine directory of
+ * the push only, which git reports to commands run on the hook thread.
+ */
+public class BlobSizer {
+
+    private static final int MAX_CACHED_READERS = 100;
+
+    private final GitCommandBuilderFactory commandFactory;
+    private final GitScmConfig gitScmConfig;
+    private final FileHooksConfig config;
+    private final SingleFlight<String, Map<String, Long>> sizeFlights = new SingleFlight<>();
+    private final Cache<Integer, PackObjectSizeReader> readers = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_READERS)
+            .build();
+
+    public BlobSizer(GitCommandBuilderFactory commandFactory, GitScmConfig gitScmConfig, FileHooksConfig config) {
+        this.commandFactory = commandFactory;
+        this.gitScmConfig = gitScmConfig;
+        this.config = config;
+    }
+
+    /**
+     * Concurrent requests for the same set of blobs, e.g. from several hooks of the same push, share a single
+     * lookup.
+     *
+     * @param repository repository of the blobs
+     * @param contentIds ids of the objects to size
+     * @return sizes by id, objects which are not blobs are missing
+     */
+    Map<String, Long> getSizes(final Repository repository, Iterable<String> contentIds) {
+        List<String> sortedContentIds = new ArrayList<>();
+        contentIds.forEach(sortedContentIds::add);
+        Collections.sort(sortedContentIds);
+        return sizeFlights.execute(repository.getId() + ":" + SingleFlight.fingerprint(sortedContentIds),
+                () -> open(repository).getSizes(sortedContentIds));
+    }
+
+    /**
+     * Opens a reader for sizing blobs in several steps, e.g. to stop as soon as enough blobs were sized. All
+     * steps use the same view of the object database.
+     *
+     * @param repository repository of the blobs
+     * @return reader for all steps
+     */
+    Reader open(final Repository repository) {
+        return new Reader(repository, config.isPackReaderEnabled() ? getReader(repository) : null);
+    }
+
+    /**
+     * Reads the sizes from the object database without forking git if possible, only the objects which
+     * could not be read there are sized by {@code cat-file}.
+     */
+    class Reader {
+
+        private final Repository repository;
+        private final PackObjectSizeReader packReader;
+        private Optional<PackObjectSizeReader> quarantineReader;
+
+        private Reader(Repository repository, PackObjectSizeReader packReader) {
+            this.repository = repository;
+            this.packReader = packReader;
+        }
+
+        /**
+         * @param contentIds ids of the objects to size
+         * @return sizes by id, objects which are not blobs are missing
+         */
+        Map<String, Long> getSizes(Iterable<String> contentIds) {
+            if (packReader == null) {
+                return catFileBatchCheck(repository, contentIds);
+            }
+            List<String> unreadable = new ArrayList<>();
+            Map<String, Long> sizes = packReader.getBlobSizes(contentIds, unreadable);
+            if (!unreadable.isEmpty() && getQuarantineReader().isPresent()) {
+                List<String> unreadableInQuarantine = new ArrayList<>();
+                sizes.putAll(quarantineReader.get().getBlobSizes(unreadable, unreadableInQuarantine));
+                unreadable = unreadableInQuarantine;
+            }
+            if (!unreadable.isEmpty()) {
+                sizes.putAll(catFileBatchCheck(repository, unreadable));
+            }
+            return sizes;
+        }
+
+        /**
+         * Only objects missing in the repository can be in quarantine, so git is only asked for the quarantine
+         * directory once such objects are sized.
+         */
+        private Optional<PackObjectSizeReader> getQuarantineReader() {
+            if (quarantineReader == null) {
+                quarantineReader = getQuarantineDir(repository).map(PackObjectSizeReader::new);
+            }
+            return quarantineReader;
+        }
+    }
+
+    private PackObjectSizeReader getReader(final Repository repository) {
+        File objectsDir = gitScmConfig.getObjectsDir(repository);
+        while (true) {
+            boolean[] created = {false};
+            PackObjectSizeReader reader;
+            try {
+                reader = readers.get(repository.getId(), () -> {
+                    created[0] = true;
+                    return new PackObjectSizeReader(objectsDir);
+                });
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            if (created[0] || reader.isCurrent()) {
+                return reader;
+            }
+            readers.asMap().remove(repository.getId(), reader);
+        }
+    }
+
+    /**
+     * While the pre-receive hooks run, git keeps the objects of the push in a quarantine directory and points the
+     * git commands of the hook thread to it. Other pushes to the repository use quarantine directories of their
+     * own, which are not looked at.
+     *
+     * @return object directory of the push in quarantine, if called on a hook thread
+     */
+    private Optional<File> getQuarantineDir(final Repository repository) {
+        DistinctLinesOutputHandler handler = new DistinctLinesOutputHandler();
+        Set<String> lines = commandFactory.builder(repository)
+                .command("rev-parse")
+                .argument("--git-path")
+                .argument("objects")
+                .build(handler)
+                .call();
+        if (lines == null || lines.size() != 1) {
+            return Optional.empty();
+        }
+        File objectDir = new File(lines.iterator().next());
+        try {
+            if (!objectDir.isAbsolute() || !objectDir.isDirectory()
+                    || objectDir.getCanonicalFile().equals(gitScmConfig.getObjectsDir(repository).getCanonicalFile())) {
+                return Optional.empty();
+            }
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.of(objectDir);
+    }
+
+    private Map<String, Long> catFileBatchCheck(final Repository repository, Iterable<String> contentIds) {
+        CatFileBatchCheckHandler handler = new CatFileBatchCheckHandler(contentIds);
+        Command<Map<String, Long>> cmd = commandFactory.builder(repository)
+                .command("cat-file")
+                .argument("--batch-check")
+                .inputHandler(handler)
+                .build(handler);
+        return filterOutNullSizes(cmd.call());
+    }
+
+    private Map<String, Long> filterOutNullSizes(Map<String, Long> sizes) {
+        return sizes.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue() != null)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
@@ -0,0 +1,172 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitRequest;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.content.AbstractChangeCallback;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.content.ChangesRequest;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.GitScmConfig;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Remembers the merge base and the files changed by a commit since its merge base with a target commit, which
+ * is what merge checks of pull requests look at.
+ *
+ * Entries are identified by the commits of both sides rather than by refs, so they never become stale: once a
+ * ref moves, its entries are no longer asked for and are eventually evicted. The {@link ChangesCacheWarmer}
+ * fills the cache after pushes with the default branch as target, so that the first check of a pull request
+ * finds its changes ready.
+ */
+public class BranchChangesCache {
+
+    private final CommitService commitService;
+    private final MergeBaseResolver mergeBaseResolver;
+    private final Cache<String, BranchChanges> changes;
+    private final SingleFlight<String, BranchChanges> flights = new SingleFlight<>();
+
+    public BranchChangesCache(GitCommandBuilderFactory builderFactory, CommitService commitService, GitScmConfig gitScmConfig,
+                              FileHooksConfig config) {
+        this.commitService = commitService;
+        this.mergeBaseResolver = new MergeBaseResolver(builderFactory, gitScmConfig, commitService);
+        this.changes = CacheBuilder.newBuilder()
+                .maximumWeight(config.getBranchChangesCacheSize())
+                .weigher((String key, BranchChanges value) -> 1 + value.getPaths().size())
+                .build();
+    }
+
+    /**
+     * @return the changes if they have been resolved before
+     */
+    Optional<BranchChanges> getIfPresent(Repository fromRepository, String fromCommitId, Repository toRepository, String toCommitId) {
+        return Optional.ofNullable(changes.getIfPresent(toKey(fromRepository, fromCommitId, toRepository, toCommitId)));
+    }
+
+    /**
+     * Returns the changes of a commit since its merge base with a target commit, resolving them if they have not
+     * been resolved before.
+     *
+     * @param fromRepository repository of the commit
+     * @param fromCommitId id of the commit, e.g. the tip of the source branch of a pull request
+     * @param toRepository repository of the target commit, may differ from the repository of the commit for forks
+     * @param toCommitId id of the target commit, e.g. the tip of the target branch of a pull request
+     * @param trace trace to record the stages in
+     * @return the changes
+     */
+    BranchChanges getChanges(Repository fromRepository, String fromCommitId, Repository toRepository, String toCommitId,
+                             HookTrace trace) {
+        String key = toKey(fromRepository, fromCommitId, toRepository, toCommitId);
+        BranchChanges cached = changes.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        return flights.execute(key, () -> {
+            BranchChanges resolved = resolve(fromRepository, fromCommitId, toRepository, toCommitId, trace);
+            changes.put(key, resolved);
+            return resolved;
+        });
+    }
+
+    long size() {
+        return changes.size();
+    }
+
+    private BranchChanges resolve(Repository fromRepository, String fromCommitId, Repository toRepository, String toCommitId,
+                                  HookTrace trace) {
+        final Commit from = getCommit(fromRepository, fromCommitId);
+        final Commit to = getCommit(toRepository, toCommitId);
+        final Commit base = trace.time(HookTrace.Stage.MERGE_BASE, () -> mergeBaseResolver.findMergeBase(from, to), commit -> 1);
+
+        final ChangesRequest.Builder builder = new ChangesRequest.Builder(fromRepository, fromCommitId);
+        if (base != null && base.getId() != null) {
+            builder.sinceId(base.getId());
+        }
+        final ChangesRequest pathsRequest = builder.build();
+        final ChangedPathsCollector pathsCallback = new ChangedPathsCollector();
+        trace.time(HookTrace.Stage.CHANGESETS, () -> commitService.streamChanges(pathsRequest, pathsCallback));
+
+        return new BranchChanges(base == null ? null : base.getId(), pathsCallback.getChangedPaths());
+    }
+
+    private Commit getCommit(Repository repository, String commitId) {
+        return commitService.getCommit(new CommitRequest.Builder(repository, commitId).build());
+    }
+
+    private static String toKey(Repository fromRepository, String fromCommitId, Repository toRepository, String toCommitId) {
+        return fromRepository.getId() + ":" + fromCommitId + ":" + toRepository.getId() + ":" + toCommitId;
+    }
+
+    /**
+     * Files changed since the merge base, together with the verdicts of the rules already checked against them.
+     */
+    static class BranchChanges {
+
+        private final String mergeBaseId;
+        private final Collection<String> paths;
+        private final ConcurrentMap<String, Collection<String>> violationsByRules = new ConcurrentHashMap<>();
+
+        BranchChanges(String mergeBaseId, Collection<String> paths) {
+            this.mergeBaseId = mergeBaseId;
+            this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+        }
+
+        /**
+         * @return id of the merge base, or null if the commits have no common history
+         */
+        String getMergeBaseId() {
+            return mergeBaseId;
+        }
+
+        /**
+         * @return paths added or modified since the merge base
+         */
+        Collection<String> getPaths() {
+            return paths;
+        }
+
+        /**
+         * Returns the paths violating the given rules, checking them only the first time they are asked for.
+         *
+         * @param rules fingerprint of the rules
+         * @param check function selecting the violating paths from {@link #getPaths()}
+         * @return violating paths
+         */
+        Collection<String> getViolations(String rules, Function<Collection<String>, Collection<String>> check) {
+            return violationsByRules.computeIfAbsent(rules, key -> check.apply(paths));
+        }
+    }
+
+    /**
+     * Callback, collecting all the paths, changed in the requested change
+     * range.
+     */
+    private static class ChangedPathsCollector extends AbstractChangeCallback {
+        private final Collection<String> changedPaths = new HashSet<>();
+
+        @Override
+        public boolean onChange(Change change) throws IOException {
+            if (change.getType() != ChangeType.DELETE) {
+                changedPaths.add(change.getPath().toString());
+            }
+            return true;
+        }
+
+        Collection<String> getChangedPaths() {
+            return changedPaths;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Compact view of the distinct files (path and content id) added or modified by a set of commits.
+ *
+ * Each file is a single {@code long} holding the path id of a {@link PathDictionary} in its upper and the
+ * content index of an {@link ObjectIdIndex} in its lower half. Files are ordered by path, so that reports do
+ * not depend on the order changes were resolved in.
+ */
+public class ChangedFiles {
+
+    private final long[] files;
+    private final PathDictionary paths;
+    private final ObjectIdIndex contentIds;
+    private final Object lock;
+    private final HookExecutor executor;
+
+    /**
+     * @param lock guards the dictionary and index, which keep growing while other hooks resolve changes
+     * @param executor executor to match large sets of files with
+     */
+    ChangedFiles(long[] files, PathDictionary paths, ObjectIdIndex contentIds, Object lock, HookExecutor executor) {
+        this.files = files;
+        this.paths = paths;
+        this.contentIds = contentIds;
+        this.lock = lock;
+        this.executor = executor;
+    }
+
+    static long pack(int pathId, int contentIndex) {
+        return (long) pathId << 32 | (contentIndex & 0xffffffffL);
+    }
+
+    public int size() {
+        return files.length;
+    }
+
+    int getPathId(int i) {
+        return (int) (files[i] >>> 32);
+    }
+
+    int getContentIndex(int i) {
+        return (int) files[i];
+    }
+
+    public String getPath(int i) {
+        synchronized (lock) {
+            return paths.get(getPathId(i));
+        }
+    }
+
+    public String getContentId(int i) {
+        synchronized (lock) {
+            return contentIds.get(getContentIndex(i));
+        }
+    }
+
+    /**
+     * Large sets of files are matched in parallel, the predicates must therefore be thread safe.
+     *
+     * @param pathPredicate predicate the path of a file has to match
+     * @return the files whose path matches, in the same order
+     */
+    public ChangedFiles filter(Predicate<String> pathPredicate) {
+        // Paths are looked up once, so that matching does not contend for the lock
+        List<String> filePaths = new ArrayList<>(files.length);
+        synchronized (lock) {
+            for (int i = 0; i < files.length; i++) {
+                filePaths.add(paths.get(getPathId(i)));
+            }
+        }
+        return select(executor.match(filePaths, pathPredicate));
+    }
+
+    /**
+     * @param contentIdPredicate predicate the content id of a file has to match
+     * @return the files whose content id matches, in the same order
+     */
+    public ChangedFiles filterByContentId(Predicate<String> contentIdPredicate) {
+        List<String> fileContentIds = new ArrayList<>(files.length);
+        synchronized (lock) {
+            for (int i = 0; i < files.length; i++) {
+                fileContentIds.add(contentIds.get(getContentIndex(i)));
+            }
+        }
+        return select(executor.match(fileContentIds, contentIdPredicate));
+    }
+
+    /**
+     * @param contentIndexPredicate predicate the content index of a file has to match
+     * @return the files whose content index matches, in the same order
+     */
+    ChangedFiles filterByContentIndex(IntPredicate contentIndexPredicate) {
+        return select(IntStream.range(0, files.length).filter(i -> contentIndexPredicate.test(getContentIndex(i))).toArray());
+    }
+
+    /**
+     * @return the files from index {@code from} inclusive to index {@code to} exclusive
+     */
+    public ChangedFiles slice(int from, int to) {
+        return new ChangedFiles(Arrays.copyOfRange(files, from, to), paths, contentIds, lock, executor);
+    }
+
+    private ChangedFiles select(int[] indexes) {
+        long[] selected = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            selected[i] = files[indexes[i]];
+        }
+        return new ChangedFiles(selected, paths, contentIds, lock, executor);
+    }
+
+    /**
+     * @return the distinct paths of all files in alphabetical order
+     */
+    public List<String> getPaths() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            if (i == 0 || getPathId(i) != getPathId(i - 1)) {
+                result.add(getPath(i));
+            }
+        }
+        return result;
+    }
+}
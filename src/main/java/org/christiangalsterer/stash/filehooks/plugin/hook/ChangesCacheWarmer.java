@@ -0,0 +1,115 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.event.repository.RepositoryPushEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.NoDefaultBranchException;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isNotDeleteRefChange;
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isNotTagRefChange;
+
+/**
+ * Resolves the merge base and the changed files of pushed branches against the default branch in the background
+ * after a push, so that the merge check of a pull request opened for them finds its changes in the
+ * {@link BranchChangesCache} instead of running git.
+ *
+ * Only pushes checked by a hook of this plugin are warmed. As the hooks of a push have all run once it was accepted,
+ * its {@link PushAnalysisContext} is released here as well. Warming is best effort: pushes arriving while the
+ * queue is full are not warmed, their pull requests are checked as before.
+ */
+public class ChangesCacheWarmer implements LifecycleAware {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangesCacheWarmer.class);
+
+    private static final int QUEUE_CAPACITY = 100;
+
+    private final EventPublisher eventPublisher;
+    private final PushAnalysisService pushAnalysisService;
+    private final BranchChangesCache branchChangesCache;
+    private final RefService refService;
+    private final SecurityService securityService;
+    private final FileHooksConfig config;
+    private final ThreadPoolExecutor executor;
+
+    public ChangesCacheWarmer(EventPublisher eventPublisher, PushAnalysisService pushAnalysisService, BranchChangesCache branchChangesCache,
+                              RefService refService, SecurityService securityService, FileHooksConfig config) {
+        this.eventPublisher = eventPublisher;
+        this.pushAnalysisService = pushAnalysisService;
+        this.branchChangesCache = branchChangesCache;
+        this.refService = refService;
+        this.securityService = securityService;
+        this.config = config;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                new ThreadFactoryBuilder().setNameFormat("filehooks-warmer-%d").setDaemon(true).build(),
+                (task, pool) -> log.debug("Not warming changes of a push, {} pushes are waiting already", QUEUE_CAPACITY));
+    }
+
+    @EventListener
+    public void onPush(RepositoryPushEvent event) {
+        Repository repository = event.getRepository();
+        // All hooks of the push have run once it was accepted, so its working set is no longer needed
+        boolean checked = pushAnalysisService.release(repository, event.getRefChanges());
+        if (!config.isChangesWarmingEnabled() || !checked) {
+            return;
+        }
+        List<RefChange> branchChanges = event.getRefChanges().stream()
+                .filter(isNotDeleteRefChange)
+                .filter(isNotTagRefChange)
+                .collect(Collectors.toList());
+        if (!branchChanges.isEmpty()) {
+            executor.execute(() -> securityService.withPermission(Permission.REPO_READ, "Warming file hooks changes")
+                    .call(() -> {
+                        warm(repository, branchChanges);
+                        return null;
+                    }));
+        }
+    }
+
+    private void warm(Repository repository, List<RefChange> branchChanges) {
+        Branch defaultBranch;
+        try {
+            defaultBranch = refService.getDefaultBranch(repository);
+        } catch (NoDefaultBranchException e) {
+            return;
+        }
+        HookTrace trace = new HookTrace(repository);
+        for (RefChange refChange : branchChanges) {
+            if (refChange.getRef().getId().equals(defaultBranch.getId())) {
+                continue;
+            }
+            try {
+                branchChangesCache.getChanges(repository, refChange.getToHash(), repository, defaultBranch.getLatestCommit(), trace);
+            } catch (RuntimeException e) {
+                log.debug("Could not warm changes of {} in {}", refChange.getRef().getId(), repository, e);
+            }
+        }
+        log.debug("Warmed changes of {} ref changes in {}: {}", branchChanges.size(), repository, trace.getStages());
+    }
+
+    @Override
+    public void onStart() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void onStop() {
+        eventPublisher.unregister(this);
+        executor.shutdownNow();
+    }
+}
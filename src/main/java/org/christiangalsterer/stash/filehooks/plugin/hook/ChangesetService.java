@@ -1,15 +1,21 @@
 package org.christiangalsterer.stash.filehooks.plugin.hook;
 
-import com.atlassian.bitbucket.commit.Commit;
-import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.commit.Changeset;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
 
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public interface ChangesetService {
-    Iterable<Change> getChanges(Iterable<RefChange> refChanges, final Repository repository);
-    Map<Commit, Iterable<Change>> getChanges(final Repository repository, Iterable<Commit> commits);
-    Set<Commit> getCommitsBetween(final Repository repository, Iterable<RefChange> refChanges);
+    void streamChangesets(final Repository repository, Iterable<String> commitIds, Consumer<Changeset> callback);
+    void streamCommitsBetween(final Repository repository, Iterable<RefChange> refChanges, Consumer<String> callback);
+    void streamCommitParentsBetween(final Repository repository, Iterable<RefChange> refChanges, BiConsumer<String, List<String>> callback);
+    int countCommitsBetween(final Repository repository, Iterable<RefChange> refChanges, int limit);
+    void streamOversizedBlobs(final Repository repository, Iterable<RefChange> refChanges, long maxSize, Consumer<String> callback);
+    boolean supportsObjectFilter(final Repository repository);
+    void streamNewObjects(final Repository repository, Iterable<RefChange> refChanges, Consumer<String> callback);
+    void streamRawChanges(final Repository repository, Iterable<String> commitIds, RawChangeCallback callback);
+    boolean isAncestor(final Repository repository, String ancestorId, String commitId);
 }
@@ -1,20 +1,22 @@
 package org.christiangalsterer.stash.filehooks.plugin.hook;
 
 import com.atlassian.bitbucket.commit.Changeset;
-import com.atlassian.bitbucket.commit.Commit;
-import com.atlassian.bitbucket.content.Change;
-import com.atlassian.bitbucket.repository.Ref;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.scm.ChangesetsCommandParameters;
-import com.atlassian.bitbucket.scm.CommitsCommandParameters;
 import com.atlassian.bitbucket.scm.ScmService;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageUtils;
 import com.atlassian.bitbucket.util.PagedIterable;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -22,85 +24,274 @@ public class ChangesetServiceImpl implements ChangesetService {
 
     private static final PageRequest PAGE_REQUEST = PageUtils.newRequest(0, PageRequest.MAX_PAGE_LIMIT);
     private static final int MAX_CHANGES_PER_COMMIT = PageRequest.MAX_PAGE_LIMIT;
+    private static final Pattern GIT_VERSION = Pattern.compile("git version (\\d+)\\.(\\d+).*");
 
     private final ScmService scmService;
+    private final GitCommandBuilderFactory commandFactory;
+    private final FileHooksConfig config;
+    private final SingleFlight<String, ObjectIdIndex> commitsFlights = new SingleFlight<>();
+    private volatile Boolean objectFilterSupported;
 
-    public ChangesetServiceImpl(ScmService scmService) {
+    public ChangesetServiceImpl(ScmService scmService, GitCommandBuilderFactory commandFactory, FileHooksConfig config) {
         this.scmService = scmService;
+        this.commandFactory = commandFactory;
+        this.config = config;
     }
 
+    /**
+     * Changesets are handed to the callback as they are paged in and are not held on to. Hooks checking the same
+     * push share its {@link PushAnalysisContext}, which resolves the changes of every commit only once.
+     */
     @Override
-    public Iterable<Change> getChanges(Iterable<RefChange> refChanges, final Repository repository) {
-        List<Change> changes = new ArrayList<>();
+    public void streamChangesets(final Repository repository, Iterable<String> commitIds, Consumer<Changeset> callback) {
+        getChangesets(repository, Lists.newArrayList(commitIds)).forEach(callback);
+    }
+
+    @Override
+    public void streamCommitsBetween(final Repository repository, Iterable<RefChange> refChanges, Consumer<String> callback) {
+        // Ref names do not matter for the walk, so pushes of the same commits to different branches share it
+        List<String> revisions = StreamSupport.stream(refChanges.spliterator(), false)
+                .map(refChange -> refChange.getType() + ":" + refChange.getFromHash() + ":" + refChange.getToHash())
+                .sorted()
+                .collect(Collectors.toList());
+        ObjectIdIndex commitIds = commitsFlights.execute(repository.getId() + ":" + SingleFlight.fingerprint(revisions),
+                () -> walkCommitsBetween(repository, refChanges));
+        for (int i = 0; i < commitIds.size(); i++) {
+            callback.accept(commitIds.get(i));
+        }
+    }
+
+    /**
+     * Walks the new commits like {@link #streamCommitsBetween} and hands each commit to the callback together with its
+     * parents, which may be commits of existing branches.
+     */
+    @Override
+    public void streamCommitParentsBetween(final Repository repository, Iterable<RefChange> refChanges,
+                                           BiConsumer<String, List<String>> callback) {
+        List<String> includes = new ArrayList<>();
+        Set<String> excludes = new HashSet<>();
+        getRevisions(refChanges, includes, excludes);
+        if (includes.isEmpty()) {
+            return;
+        }
+
+        // <id> <parent id>...
+        RevListHandler handler = new RevListHandler(Iterables.concat(includes, excludes), line -> {
+            String[] ids = line.split(" ");
+            callback.accept(ids[0], Arrays.asList(ids).subList(1, ids.length));
+        });
+        commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("--parents")
+                .argument("--stdin")
+                .argument("--not")
+                .argument("--branches")
+                .argument("--tags")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
+    }
+
+    @Override
+    public int countCommitsBetween(final Repository repository, Iterable<RefChange> refChanges, int limit) {
+        List<String> includes = new ArrayList<>();
+        Set<String> excludes = new HashSet<>();
+        getRevisions(refChanges, includes, excludes);
+        if (includes.isEmpty()) {
+            return 0;
+        }
+
+        RevListHandler handler = new RevListHandler(Iterables.concat(includes, excludes), line -> {});
+        String count = commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("--count")
+                .argument("--max-count=" + limit)
+                .argument("--stdin")
+                .argument("--not")
+                .argument("--branches")
+                .argument("--tags")
+                .inputHandler(handler)
+                .build(new FirstLineOutputHandler())
+                .call();
+        return count == null ? 0 : Integer.parseInt(count.trim());
+    }
 
-        Iterable<Commit> commits = getCommitsBetween(repository, refChanges);
-        for (Iterable<Change> values : getChanges(repository, commits).values()) {
-            Iterables.addAll(changes, values);
+    /**
+     * Lets git find the new blobs larger than the given size while walking the objects of the new commits, so
+     * that no change has to be listed and no blob sized for pushes without such blobs. Blobs reachable from any
+     * branch or tag are not new and therefore not reported, even if a new commit adds them under another path.
+     * Requires git 2.16 or later, see {@link #supportsObjectFilter}.
+     */
+    @Override
+    public void streamOversizedBlobs(final Repository repository, Iterable<RefChange> refChanges, long maxSize,
+                                     Consumer<String> callback) {
+        List<String> includes = new ArrayList<>();
+        Set<String> excludes = new HashSet<>();
+        getRevisions(refChanges, includes, excludes);
+        if (includes.isEmpty()) {
+            return;
         }
 
-        return changes;
+        // Blobs of at least the limit are omitted from the listing and printed as ~<id> instead
+        RevListHandler handler = new RevListHandler(Iterables.concat(includes, excludes), line -> {
+            if (line.startsWith("~")) {
+                callback.accept(line.substring(1));
+            }
+        });
+        commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("--objects")
+                .argument("--filter=blob:limit=" + (maxSize + 1))
+                .argument("--filter-print-omitted")
+                .argument("--stdin")
+                .argument("--not")
+                .argument("--branches")
+                .argument("--tags")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
     }
 
+    /**
+     * Lists the ids of all commits, trees and blobs of the new commits which are not reachable from any branch or
+     * tag, i.e. the objects the push adds to the repository.
+     */
     @Override
-    public Map<Commit, Iterable<Change>> getChanges(final Repository repository, Iterable<Commit> commits) {
-        Map<Commit, Iterable<Change>> changesByCommit = new HashMap<>();
+    public void streamNewObjects(final Repository repository, Iterable<RefChange> refChanges, Consumer<String> callback) {
+        List<String> includes = new ArrayList<>();
+        Set<String> excludes = new HashSet<>();
+        getRevisions(refChanges, includes, excludes);
+        if (includes.isEmpty()) {
+            return;
+        }
+
+        // <id> for commits, <id> <path> for trees and blobs
+        RevListHandler handler = new RevListHandler(Iterables.concat(includes, excludes), line -> {
+            int space = line.indexOf(' ');
+            callback.accept(space < 0 ? line : line.substring(0, space));
+        });
+        commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("--objects")
+                .argument("--stdin")
+                .argument("--not")
+                .argument("--branches")
+                .argument("--tags")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
+    }
 
-        Iterable<Changeset> changesets = getChangesets(repository, commits);
-        for (Changeset changeset : changesets) {
-            changesByCommit.put(changeset.getToCommit(), changeset.getChanges().getValues());
+    /**
+     * Asks git for its version once, the git binary used by Bitbucket does not change while it is running.
+     *
+     * @return true if git supports the object filter of {@code rev-list}, added in git 2.16
+     */
+    @Override
+    public boolean supportsObjectFilter(final Repository repository) {
+        Boolean supported = objectFilterSupported;
+        if (supported == null) {
+            String version = commandFactory.builder(repository)
+                    .command("version")
+                    .build(new FirstLineOutputHandler())
+                    .call();
+            objectFilterSupported = supported = isAtLeast(version, 2, 16);
         }
+        return supported;
+    }
 
-        return changesByCommit;
+    static boolean isAtLeast(String version, int major, int minor) {
+        Matcher matcher = GIT_VERSION.matcher(version == null ? "" : version.trim());
+        if (!matcher.matches()) {
+            return false;
+        }
+        int actualMajor = Integer.parseInt(matcher.group(1));
+        return actualMajor > major || (actualMajor == major && Integer.parseInt(matcher.group(2)) >= minor);
     }
 
     @Override
-    public Set<Commit> getCommitsBetween(final Repository repository, Iterable<RefChange> refChanges) {
-        Set<Commit> commits = new HashSet<>();
-        CommitsCommandParameters.Builder builder = new CommitsCommandParameters.Builder().withMessages(false);
+    public void streamRawChanges(final Repository repository, Iterable<String> commitIds, RawChangeCallback callback) {
+        DiffTreeHandler handler = new DiffTreeHandler(commitIds, callback);
+        commandFactory.builder(repository)
+                .command("diff-tree")
+                .argument("--stdin")
+                .argument("-r")
+                .argument("--no-renames")
+                .argument("--root")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
+    }
+
+    @Override
+    public boolean isAncestor(final Repository repository, String ancestorId, String commitId) {
+        // Lists nothing if the ancestor is reachable from the commit
+        String commit = commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("-n")
+                .argument("1")
+                .argument(ancestorId)
+                .argument("^" + commitId)
+                .build(new FirstLineOutputHandler())
+                .call();
+        return commit == null;
+    }
 
+    private void getRevisions(Iterable<RefChange> refChanges, List<String> includes, Set<String> excludes) {
         for (RefChange refChange : refChanges) {
             switch (refChange.getType()) {
                 case UPDATE:
-                    builder = builder.include(refChange.getToHash());
-                    builder = builder.exclude(refChange.getFromHash());
+                    includes.add(refChange.getToHash());
+                    excludes.add("^" + refChange.getFromHash());
                     break;
                 case ADD:
-                    builder = builder.include(refChange.getToHash());
+                    includes.add(refChange.getToHash());
                     break;
                 case DELETE:
                     // Deleting branch means that its commits were already in repository,
                     // excluding them may reduce amount of commits to inspect if other ref changes exist.
-                    builder = builder.exclude(refChange.getFromHash());
+                    excludes.add("^" + refChange.getFromHash());
                     break;
             }
         }
+    }
 
-        Set<String> existingHeads = getExistingRefs(repository).stream()
-                .map(Ref::getLatestCommit)
-                .collect(Collectors.toSet());
-
-        builder = builder.exclude(existingHeads);
+    private ObjectIdIndex walkCommitsBetween(final Repository repository, Iterable<RefChange> refChanges) {
+        List<String> includes = new ArrayList<>();
+        Set<String> excludes = new HashSet<>();
+        getRevisions(refChanges, includes, excludes);
 
-        CommitsCommandParameters parameters = builder.build();
-        if (parameters.hasIncludes()) {
-            scmService.getCommandFactory(repository).commits(parameters, commits::add).call();
+        ObjectIdIndex commitIds = new ObjectIdIndex(config.getWorkingSetSpillThreshold());
+        if (!includes.isEmpty()) {
+            walkCommits(repository, includes, excludes, commitIds::add);
         }
-        return commits;
+        return commitIds;
     }
 
-    private Set<Ref> getExistingRefs(final Repository repository) {
-        Set<Ref> refs = new HashSet<>();
-        scmService.getCommandFactory(repository).heads(refs::add).call();
-        return refs;
+    /**
+     * Walks the commits reachable from the includes but neither from the excludes nor from any existing branch
+     * or tag.
+     *
+     * Revisions are fed through stdin and existing branches and tags are excluded by git itself, so neither the
+     * command line nor the memory needed grow with the number of refs in the repository.
+     */
+    private void walkCommits(final Repository repository, Collection<String> includes, Collection<String> excludes,
+                             Consumer<String> callback) {
+        RevListHandler handler = new RevListHandler(Iterables.concat(includes, excludes), callback);
+        commandFactory.builder(repository)
+                .command("rev-list")
+                .argument("--stdin")
+                .argument("--not")
+                .argument("--branches")
+                .argument("--tags")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
     }
 
-    private Iterable<Changeset> getChangesets(final Repository repository, Iterable<Commit> commits) {
+    private Iterable<Changeset> getChangesets(final Repository repository, Collection<String> commitIds) {
         Iterable<Changeset> changesets = new ArrayList<>();
 
-        final Collection<String> commitIds = StreamSupport.stream(commits.spliterator(), false)
-                .map(Commit::getId)
-                .collect(Collectors.toSet());
-
         if (!commitIds.isEmpty()) {
             changesets = new PagedIterable<>(pageRequest -> scmService.getCommandFactory(repository).changesets(
                     new ChangesetsCommandParameters.Builder()
@@ -0,0 +1,109 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.io.LineReader;
+import com.atlassian.bitbucket.io.LineReaderOutputHandler;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Feeds commit ids to {@code git diff-tree --stdin -r --no-renames --root} and streams the raw changes of every
+ * commit to a callback while git is still running.
+ *
+ * Merge commits are only printed by diff-tree when asked for a combined diff, so they yield no changes here and
+ * have to be resolved differently.
+ *
+ * {@code git log --format=%H --raw --no-abbrev} prints the same output while walking the commits itself, the
+ * handler feeds it the revisions to walk instead of commit ids then.
+ */
+public class DiffTreeHandler extends LineReaderOutputHandler implements CommandInputHandler, CommandOutputHandler<Void> {
+
+    private static final String ZERO_ID = "0000000000000000000000000000000000000000";
+    private static final String GITLINK_MODE = "160000";
+
+    private final Iterable<String> commitIds;
+    private final RawChangeCallback callback;
+
+    DiffTreeHandler(Iterable<String> commitIds, RawChangeCallback callback) {
+        super(StandardCharsets.UTF_8);
+        this.commitIds = commitIds;
+        this.callback = callback;
+    }
+
+    @Override
+    public Void getOutput() {
+        return null;
+    }
+
+    @Override
+    protected void processReader(LineReader reader) throws IOException {
+        String line;
+        while ((line = resetWatchdogAndReadLine(reader)) != null) {
+            if (line.startsWith(":")) {
+                // :<old mode> <new mode> <old id> <new id> <status>\t<path>
+                int tab = line.indexOf('\t');
+                String[] split = line.substring(1, tab).split(" ");
+                boolean deleted = split[4].startsWith("D");
+                String contentId = deleted || ZERO_ID.equals(split[3]) ? split[2] : split[3];
+                boolean submodule = GITLINK_MODE.equals(deleted ? split[0] : split[1]);
+                callback.onChange(unquote(line.substring(tab + 1)), contentId, deleted, submodule);
+            } else if (!line.isEmpty()) {
+                callback.onCommit(line.trim());
+            }
+        }
+    }
+
+    @Override
+    public void process(OutputStream input) {
+        try {
+            for (String commitId : commitIds) {
+                input.write(commitId.getBytes(StandardCharsets.UTF_8.name()));
+                input.write("\n".getBytes(StandardCharsets.UTF_8.name()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        IOUtils.closeQuietly(input);
+    }
+
+    /**
+     * Reverts the C-style quoting git applies to paths containing special characters.
+     */
+    static String unquote(String path) {
+        if (path.length() < 2 || path.charAt(0) != '"' || path.charAt(path.length() - 1) != '"') {
+            return path;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 1; i < path.length() - 1; i++) {
+            char c = path.charAt(i);
+            if (c != '\\') {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+                continue;
+            }
+            char escaped = path.charAt(++i);
+            switch (escaped) {
+                case 'a': bytes.write(7); break;
+                case 'b': bytes.write('\b'); break;
+                case 'f': bytes.write('\f'); break;
+                case 'n': bytes.write('\n'); break;
+                case 'r': bytes.write('\r'); break;
+                case 't': bytes.write('\t'); break;
+                case 'v': bytes.write(11); break;
+                default:
+                    if (escaped >= '0' && escaped <= '7') {
+                        bytes.write(Integer.parseInt(path.substring(i, i + 3), 8));
+                        i += 2;
+                    } else {
+                        bytes.write(escaped);
+                    }
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.io.LineReader;
+import com.atlassian.bitbucket.io.LineReaderOutputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Returns the distinct, non empty lines of output provided by the git process in the order they were printed.
+ */
+public class DistinctLinesOutputHandler extends LineReaderOutputHandler implements CommandOutputHandler<Set<String>> {
+
+    private final Set<String> lines = new LinkedHashSet<>();
+
+    DistinctLinesOutputHandler() {
+        super(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Set<String> getOutput() {
+        return lines;
+    }
+
+    @Override
+    protected void processReader(LineReader reader) throws IOException {
+        String line;
+        while ((line = resetWatchdogAndReadLine(reader)) != null) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Node level configuration of the plugin, read from {@code bitbucket.properties}.
+ *
+ * All keys are prefixed with {@code plugin.filehooks.} and fall back to the defaults below when not set.
+ */
+public class FileHooksConfig {
+
+    private static final String PREFIX = "plugin.filehooks.";
+
+    private final ApplicationPropertiesService propertiesService;
+
+    public FileHooksConfig(ApplicationPropertiesService propertiesService) {
+        this.propertiesService = propertiesService;
+    }
+
+    /**
+     * @return number of repository audits running at the same time
+     */
+    int getAuditThreads() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "audit.threads", 1));
+    }
+
+    /**
+     * @return number of files checked and sized at once during an audit, the audit is checkpointed and paused after each batch
+     */
+    int getAuditBatchSize() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "audit.batch.size", 1000));
+    }
+
+    /**
+     * @return share of wall clock time (in percent) an audit may spend working, the rest is spent sleeping
+     */
+    int getAuditBudgetPercent() {
+        return Math.min(100, Math.max(1, propertiesService.getPluginProperty(PREFIX + "audit.budget.percent", 25)));
+    }
+
+    /**
+     * @return maximum number of violations stored in an audit report
+     */
+    int getAuditMaxViolations() {
+        return Math.max(0, propertiesService.getPluginProperty(PREFIX + "audit.max.violations", 10000));
+    }
+
+    /**
+     * @return estimated number of bytes of the working sets of all pushes kept for their hooks per node
+     */
+    long getWorkingSetCacheSize() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "workingset.cache.mb", 256)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return number of bytes of packed object ids and their lookup table per index above which both are moved to memory-mapped files
+     */
+    long getWorkingSetSpillThreshold() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "workingset.spill.threshold.mb", 64)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return maximum number of violations written in detail to the git client or a merge check veto
+     */
+    int getReportMaxDetailLines() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "report.max.lines", 100));
+    }
+
+    /**
+     * @return maximum number of directory and file type groups written to the git client
+     */
+    int getReportMaxGroups() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "report.max.groups", 20));
+    }
+
+    /**
+     * @return number of threads on this node matching the files of large pushes against the patterns
+     */
+    int getParallelThreads() {
+        int defaultThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "parallel.threads", defaultThreads));
+    }
+
+    /**
+     * @return minimum number of new commits of a push for which changes are streamed from git
+     */
+    int getStreamingCommitsThreshold() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "plan.streaming.commits", 5000));
+    }
+
+    /**
+     * @return maximum number of content ids sized with a single {@code cat-file} call for streamed pushes
+     */
+    int getSizeBatchSize() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "plan.size.batch", 50000));
+    }
+
+    /**
+     * @return true if blob sizes are read from the object database of the repository before asking git
+     */
+    boolean isPackReaderEnabled() {
+        return propertiesService.getPluginProperty(PREFIX + "sizes.packreader", true);
+    }
+
+    /**
+     * @return maximum number of heavy hook evaluations running at the same time on this node
+     */
+    int getAdmissionPermits() {
+        int defaultPermits = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "admission.permits", defaultPermits));
+    }
+
+    /**
+     * @return what happens to evaluations when all permits are taken
+     */
+    AdmissionController.Policy getAdmissionPolicy() {
+        String policy = propertiesService.getPluginProperty(PREFIX + "admission.policy", AdmissionController.Policy.WAIT.name());
+        try {
+            return AdmissionController.Policy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return AdmissionController.Policy.WAIT;
+        }
+    }
+
+    /**
+     * @return maximum time an evaluation waits for a permit before it is rejected
+     */
+    long getAdmissionMaxWaitMillis() {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, propertiesService.getPluginProperty(PREFIX + "admission.wait.seconds", 60)));
+    }
+
+    /**
+     * @return maximum number of evaluations waiting for a permit, further evaluations are rejected
+     */
+    int getAdmissionMaxQueued() {
+        return Math.max(0, propertiesService.getPluginProperty(PREFIX + "admission.queue.max", 100));
+    }
+
+    /**
+     * @return maximum number of trees remembered as free of violations
+     */
+    long getTreeCacheSize() {
+        return Math.max(0, propertiesService.getPluginProperty(PREFIX + "trees.cache.size", 100000));
+    }
+
+    /**
+     * @return true if size limits applying to all paths and branches are checked with the object filter of git, which
+     * only reports blobs new to the repository. Ignored if git is older than 2.16.
+     */
+    boolean isSizeFilterEnabled() {
+        return propertiesService.getPluginProperty(PREFIX + "sizes.filter", false);
+    }
+
+    /**
+     * @return minimum number of paths to match against patterns in parallel
+     */
+    int getParallelMatchingThreshold() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "parallel.matching.threshold", 10000));
+    }
+
+    /**
+     * @return duration in milliseconds after which a check is written to the slow check log
+     */
+    long getSlowLogThresholdMillis() {
+        return Math.max(0, propertiesService.getPluginProperty(PREFIX + "trace.slow.ms", 10000));
+    }
+
+    /**
+     * @return maximum number of changed paths of pull requests remembered, see {@link BranchChangesCache}
+     */
+    long getBranchChangesCacheSize() {
+        return Math.max(0, propertiesService.getPluginProperty(PREFIX + "changes.cache.paths", 200000));
+    }
+
+    /**
+     * @return true if the changes of pushed branches against the default branch are resolved after each push
+     */
+    boolean isChangesWarmingEnabled() {
+        return propertiesService.getPluginProperty(PREFIX + "changes.warming", true);
+    }
+
+    /**
+     * @return true if pushes to the repository are accepted right away and verified in the background, see {@link AsyncEnforcer}
+     */
+    boolean isAsyncEnforced(Repository repository) {
+        String repositories = propertiesService.getPluginProperty(PREFIX + "async.repositories", "").trim();
+        if (repositories.isEmpty()) {
+            return false;
+        }
+        try {
+            return Pattern.compile(repositories).matcher(repository.getProject().getKey() + "/" + repository.getSlug()).matches();
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return number of accepted pushes verified at the same time
+     */
+    int getAsyncThreads() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "async.threads", 1));
+    }
+
+    /**
+     * @return maximum number of accepted pushes waiting for verification, further pushes are checked right away
+     */
+    int getAsyncMaxQueued() {
+        return Math.max(1, propertiesService.getPluginProperty(PREFIX + "async.queue.max", 1000));
+    }
+}
@@ -1,12 +1,5 @@
 package org.christiangalsterer.stash.filehooks.plugin.hook;
 
-import com.atlassian.bitbucket.commit.Commit;
-import com.atlassian.bitbucket.commit.CommitRequest;
-import com.atlassian.bitbucket.commit.CommitService;
-import com.atlassian.bitbucket.content.AbstractChangeCallback;
-import com.atlassian.bitbucket.content.Change;
-import com.atlassian.bitbucket.content.ChangeType;
-import com.atlassian.bitbucket.content.ChangesRequest;
 import com.atlassian.bitbucket.hook.HookResponse;
 import com.atlassian.bitbucket.hook.repository.PreReceiveRepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookContext;
@@ -15,54 +8,77 @@ import com.atlassian.bitbucket.hook.repository.RepositoryMergeRequestCheckContex
 import com.atlassian.bitbucket.i18n.I18nService;
 import com.atlassian.bitbucket.pull.PullRequest;
 import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.NoDefaultBranchException;
 import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefService;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.git.GitScmConfig;
 import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
 import com.atlassian.bitbucket.scm.pull.MergeRequest;
 import com.atlassian.bitbucket.setting.RepositorySettingsValidator;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.*;
 
 import javax.annotation.Nonnull;
 
-import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.*;
 
 /**
  * Checks the name and path of a file in the pre-receive phase and rejects the push when the changeset contains files which match the configured file name pattern.
+ *
+ * For repositories enforced asynchronously the push is accepted right away and verified by the {@link AsyncEnforcer}.
+ * Deleting or renaming a violating file in a later push makes up for it, so the flag of a ref is kept only while the
+ * changes of the ref since the default branch still violate the pattern, and the merge check vetoes pull requests
+ * only for the files changed by the pull request.
  */
 public class FileNameHook implements PreReceiveRepositoryHook, RepositorySettingsValidator, RepositoryMergeRequestCheck {
 
+    static final String HOOK_KEY = "filename-hook";
+
     private static final String SETTINGS_INCLUDE_PATTERN = "pattern";
     private static final String SETTINGS_EXCLUDE_PATTERN = "pattern-exclude";
     private static final String SETTINGS_BRANCHES_PATTERN = "pattern-branches";
+    private static final List<String> REPORT_BORDER = Collections.singletonList("=================================");
 
-    private final ChangesetService changesetService;
+    private final PushAnalysisService pushAnalysisService;
     private final I18nService i18n;
-    private final CommitService commitService; 
-    private final MergeBaseResolver mergeBaseResolver;
+    private final BranchChangesCache branchChangesCache;
+    private final RefService refService;
+    private final FileHooksConfig config;
+    private final AdmissionController admissionController;
+    private final AsyncEnforcer asyncEnforcer;
+    private final TreeWalker treeWalker;
 
-    public FileNameHook(GitCommandBuilderFactory builderFactory, CommitService commitService, ChangesetService changesetService, I18nService i18n, GitScmConfig gitScmConfig) {
-        this.changesetService = changesetService;
+    public FileNameHook(PushAnalysisService pushAnalysisService, BranchChangesCache branchChangesCache, RefService refService,
+                        I18nService i18n, FileHooksConfig config, AdmissionController admissionController, AsyncEnforcer asyncEnforcer,
+                        GitCommandBuilderFactory commandFactory, TreeVerdictCache treeVerdictCache) {
+        this.pushAnalysisService = pushAnalysisService;
+        this.branchChangesCache = branchChangesCache;
+        this.refService = refService;
+        this.config = config;
+        this.admissionController = admissionController;
+        this.asyncEnforcer = asyncEnforcer;
+        this.treeWalker = new TreeWalker(commandFactory, treeVerdictCache);
         this.i18n = i18n;
-        this.commitService = commitService;
-        this.mergeBaseResolver = new MergeBaseResolver(builderFactory, gitScmConfig, commitService); 
     }
 
     @Override
     public boolean onReceive(@Nonnull RepositoryHookContext context, @Nonnull Collection<RefChange> refChanges, @Nonnull HookResponse hookResponse) {
+        long start = System.nanoTime();
         Repository repository = context.getRepository();
         FileNameHookSetting setting = getSettings(context.getSettings());
         Optional<Pattern> branchesPattern = setting.getBranchesPattern();
@@ -73,30 +89,96 @@ public class FileNameHook implements PreReceiveRepositoryHook, RepositorySetting
             filteredRefChanges = filteredRefChanges.stream().filter(matchesBranchPattern(branchesPattern.get())).collect(Collectors.toList());
         }
 
-        Iterable<Change> changes = changesetService.getChanges(filteredRefChanges, repository);
+        PushAnalysisContext pushContext = pushAnalysisService.getContext(repository, refChanges);
+        HookTrace trace = pushContext.startTrace();
+        try {
+            // Planning walks the new commits already, so it is admitted like the check itself
+            Optional<AdmissionController.Permit> permit = admissionController.admit(String.valueOf(repository.getId()));
+            if (!permit.isPresent()) {
+                hookResponse.err().println("File Name Hook: " + AdmissionController.REJECTED_MESSAGE);
+                return false;
+            }
+            try (AdmissionController.Permit ignored = permit.get()) {
+                if (pushContext.getPlan().getStrategy() == PushPlan.Strategy.SKIP) {
+                    return true;
+                }
+                if (config.isAsyncEnforced(repository) && verifyLater(repository, refChanges, setting, filteredRefChanges, pushContext)) {
+                    return true;
+                }
+                return checkFileNames(setting, filteredRefChanges, pushContext, hookResponse.out());
+            }
+        } finally {
+            pushContext.endTrace();
+            pushAnalysisService.returnContext(pushContext);
+            trace.logIfSlow("FileNameHook", start, config.getSlowLogThresholdMillis(), refChanges, pushContext.getPlanIfMade());
+        }
+    }
+
+    /**
+     * Prepares the verification of the push, which is queued once the push was accepted. Returns false if the push
+     * has to be checked right away. Only the commits of the push are kept until then.
+     */
+    private boolean verifyLater(Repository repository, Collection<RefChange> refChanges, FileNameHookSetting setting,
+                                Collection<RefChange> filteredRefChanges, PushAnalysisContext pushContext) {
+        // New commits are told apart from those of existing branches, so they have to be listed before the refs are updated
+        PushAnalysisContext.Snapshot snapshot = pushContext.snapshot(filteredRefChanges);
+        Supplier<PushAnalysisContext> verificationContext = Suppliers.memoize(() ->
+                pushAnalysisService.restoreContext(repository, refChanges, snapshot));
+        return asyncEnforcer.prepare(repository, HOOK_KEY, refChanges, (refChange, out) -> !filteredRefChanges.contains(refChange)
+                || checkFileNames(setting, Collections.singletonList(refChange), verificationContext.get(), out),
+                (flag, refChange) -> isStillViolating(repository, setting, flag, refChange));
+    }
+
+    /**
+     * Tells whether a flagged ref still changes files violating the pattern since the default branch, which is what
+     * the merge check of its pull requests looks at.
+     */
+    private boolean isStillViolating(Repository repository, FileNameHookSetting setting, FlagStore.Flag flag, RefChange refChange) {
+        Branch defaultBranch;
+        try {
+            defaultBranch = refService.getDefaultBranch(repository);
+        } catch (NoDefaultBranchException e) {
+            defaultBranch = null;
+        }
+        if (defaultBranch == null || defaultBranch.getId().equals(refChange.getRef().getId())) {
+            return asyncEnforcer.containsFlaggedCommit(repository, flag, refChange);
+        }
+        HookTrace trace = new HookTrace(repository);
+        BranchChangesCache.BranchChanges changes = branchChangesCache.getChanges(repository, refChange.getToHash(),
+                repository, defaultBranch.getLatestCommit(), trace);
+        return !getViolatingFiles(changes, setting, trace).isEmpty();
+    }
 
-        Collection<String> filteredPaths = StreamSupport.stream(changes.spliterator(), false).filter(isNotDeleteChange).map(Functions.CHANGE_TO_PATH).filter(setting.getIncludePattern().asPredicate()).collect(Collectors.toList());
+    private boolean checkFileNames(FileNameHookSetting setting, Collection<RefChange> filteredRefChanges,
+                                   PushAnalysisContext pushContext, PrintWriter out) {
+        Optional<Pattern> branchesPattern = setting.getBranchesPattern();
+        if (treeWalker.isCleanBranchCreation(filteredRefChanges, pushContext, setting, contentIds -> Collections.emptyMap())) {
+            return true;
+        }
+        ChangedFiles changedFiles = pushContext.getChangedFiles(filteredRefChanges);
 
+        Predicate<String> pathPredicate = setting.getIncludePattern().asPredicate();
         if(setting.getExcludePattern().isPresent()) {
-            Pattern excludePattern = setting.getExcludePattern().get();
-            filteredPaths = filteredPaths.stream().filter(excludePattern.asPredicate().negate()).collect(Collectors.toList());
+            pathPredicate = pathPredicate.and(setting.getExcludePattern().get().asPredicate().negate());
         }
+        Predicate<String> matchesPath = pathPredicate;
+        Collection<String> filteredPaths = pushContext.getTrace().time(HookTrace.Stage.MATCHING,
+                () -> changedFiles.filter(matchesPath), ChangedFiles::size).getPaths();
 
-        if (filteredPaths.size() > 0) {
-            hookResponse.out().println("=================================");
-            for (String path : filteredPaths) {
-                String msg;
-                if(branchesPattern.isPresent()) {
-                    msg = String.format("File [%s] violates file name pattern [%s] for branch [%s].", path, setting.getIncludePattern().pattern(), branchesPattern.get());
-                } else {
-                    msg = String.format("File [%s] violates file name pattern [%s].", path, setting.getIncludePattern().pattern());
-                }
-                hookResponse.out().println(msg);
+        ViolationReporter reporter = new ViolationReporter(out, REPORT_BORDER, REPORT_BORDER,
+                config.getReportMaxDetailLines(), config.getReportMaxGroups());
+        for (String path : filteredPaths) {
+            String msg;
+            if(branchesPattern.isPresent()) {
+                msg = String.format("File [%s] violates file name pattern [%s] for branch [%s].", path, setting.getIncludePattern().pattern(), branchesPattern.get());
+            } else {
+                msg = String.format("File [%s] violates file name pattern [%s].", path, setting.getIncludePattern().pattern());
             }
-            hookResponse.out().println("=================================");
-            return false;
+            reporter.report(path, -1, msg);
         }
-        return true;
+        reporter.finish();
+
+        return !reporter.hasViolations();
     }
 
     private FileNameHookSetting getSettings(Settings settings) {
@@ -137,70 +219,60 @@ public class FileNameHook implements PreReceiveRepositoryHook, RepositorySetting
         }
     }
 	
-    /**
-     * Callback, collecting all the paths, changed in the requested change 
-     * range. 
-     */ 
-    private static class ChangedPathsCollector extends AbstractChangeCallback {
-        private final Collection<String> changedPaths = new HashSet<>();
- 
-        @Override 
-        public boolean onChange(Change change) throws IOException {
-        	if (change.getType() != ChangeType.DELETE) {
-                changedPaths.add(change.getPath().toString());
-        	}
-            return true; 
-        } 
- 
-        Collection<String> getChangedPaths() {
-            return changedPaths; 
-        } 
- 
-    }  
-  			 	
-    private String getPullRequestError(Collection<String> filteredFiles) {
-        final StringBuilder sb = new StringBuilder();
-        final Iterator<String> iter = filteredFiles.iterator();
-        while (iter.hasNext()) {
-            sb.append(iter.next());
-            if (iter.hasNext()) {
-                sb.append(", ");
-            }
-        }
-        return sb.toString();
-    }
-	 
 	@Override
 	public void check(RepositoryMergeRequestCheckContext context) {
+		final long start = System.nanoTime();
 		final MergeRequest request = context.getMergeRequest();
 		final PullRequest pr = request.getPullRequest();
-		final Commit prFrom = getChangeSet(pr.getFromRef());
-		final Commit prTo = getChangeSet(pr.getToRef());
-		final Commit base = mergeBaseResolver.findMergeBase(prFrom, prTo);
 	    final FileNameHookSetting setting = getSettings(context.getSettings());
-	    
-		final ChangesRequest.Builder builder = new ChangesRequest.Builder(prFrom.getRepository(), prFrom.getId()); 
-        if (base.getId() != null) { 
-            builder.sinceId(base.getId()); 
-        } 
-        final ChangesRequest pathsRequest = builder.build(); 
-        final ChangedPathsCollector pathsCallback = new ChangedPathsCollector();
-        commitService.streamChanges(pathsRequest, pathsCallback);
-	    Collection<String> filteredFiles = pathsCallback.getChangedPaths();
-        filteredFiles = filteredFiles.stream().filter(setting.getIncludePattern().asPredicate()).collect(Collectors.toList());
-		 
-		if(setting.getExcludePattern().isPresent()) {
-			 Pattern excludePattern = setting.getExcludePattern().get();
-			 filteredFiles = filteredFiles.stream().filter(excludePattern.asPredicate().negate()).collect(Collectors.toList());
-		}
-	    
-	    if (filteredFiles.size() > 0) {
-	        request.veto(i18n.getText("filename-hook.mergecheck.veto", "File Name Hook: The following files violate the file name pattern [{0}]:", setting.getIncludePattern().pattern()), getPullRequestError(filteredFiles));
+	    final PullRequestRef from = pr.getFromRef();
+	    final PullRequestRef to = pr.getToRef();
+
+	    final HookTrace trace = new HookTrace(to.getRepository());
+	    Collection<String> filteredFiles;
+	    try {
+	        // Changes warmed after the push are ready without running git, only the first check of a pull request has to wait for a permit
+	        Optional<BranchChangesCache.BranchChanges> warmed = branchChangesCache.getIfPresent(
+	                from.getRepository(), from.getLatestCommit(), to.getRepository(), to.getLatestCommit());
+	        if (warmed.isPresent()) {
+	            filteredFiles = getViolatingFiles(warmed.get(), setting, trace);
+	        } else {
+	            Optional<AdmissionController.Permit> permit = admissionController.admit(String.valueOf(to.getRepository().getId()));
+	            if (!permit.isPresent()) {
+	                request.veto(i18n.getText("filename-hook.mergecheck.busy", "File Name Hook: The server is too busy to check this pull request."),
+	                        AdmissionController.REJECTED_MESSAGE);
+	                return;
+	            }
+	            try (AdmissionController.Permit ignored = permit.get()) {
+	                // Reviewers opening the same pull request at the same time share a single check
+	                BranchChangesCache.BranchChanges changes = branchChangesCache.getChanges(
+	                        from.getRepository(), from.getLatestCommit(), to.getRepository(), to.getLatestCommit(), trace);
+	                filteredFiles = getViolatingFiles(changes, setting, trace);
+	            }
+	        }
+	    } finally {
+	        trace.logIfSlow("FileNameHook", start, config.getSlowLogThresholdMillis(), pr.getId());
+	    }
+
+	    // A flag only tells that the violations were pushed unchecked, they are re-evaluated against the changes of the pull request
+	    if (filteredFiles.size() > 0 && asyncEnforcer.getFlag(pr, HOOK_KEY).isPresent()) {
+	        request.veto(i18n.getText("filename-hook.mergecheck.flagged", "File Name Hook: Commits pushed to this branch contain files which violate the file name pattern."),
+	                ViolationReporter.summarize(filteredFiles, config.getReportMaxDetailLines()));
+	    } else if (filteredFiles.size() > 0) {
+	        request.veto(i18n.getText("filename-hook.mergecheck.veto", "File Name Hook: The following files violate the file name pattern [{0}]:", setting.getIncludePattern().pattern()), ViolationReporter.summarize(filteredFiles, config.getReportMaxDetailLines()));
 	    }     
 	}
-	
-    private Commit getChangeSet(PullRequestRef prRef) {
-        final CommitRequest.Builder builder = new CommitRequest.Builder(prRef.getRepository(), prRef.getLatestCommit());
-        return commitService.getCommit(builder.build());
-    }
+
+	private Collection<String> getViolatingFiles(BranchChangesCache.BranchChanges changes, FileNameHookSetting setting, HookTrace trace) {
+	    String rules = setting.getIncludePattern().pattern() + ":" + setting.getExcludePattern().map(Pattern::pattern).orElse("");
+	    return changes.getViolations(rules, changedPaths -> trace.time(HookTrace.Stage.MATCHING, () -> {
+	        Collection<String> filteredFiles = changedPaths.stream().filter(setting.getIncludePattern().asPredicate()).collect(Collectors.toList());
+
+	        if(setting.getExcludePattern().isPresent()) {
+	            Pattern excludePattern = setting.getExcludePattern().get();
+	            filteredFiles = filteredFiles.stream().filter(excludePattern.asPredicate().negate()).collect(Collectors.toList());
+	        }
+	        return filteredFiles;
+	    }, Collection::size));
+	}
 }
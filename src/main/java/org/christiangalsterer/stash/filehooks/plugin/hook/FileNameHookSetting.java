@@ -5,7 +5,7 @@ import com.google.common.base.Strings;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
-class FileNameHookSetting {
+class FileNameHookSetting implements TreeRules {
 
     private Pattern includePattern;
     private Optional<Pattern> excludePattern;
@@ -26,4 +26,24 @@ class FileNameHookSetting {
     }
 
     Optional<Pattern> getBranchesPattern() { return branchesPattern; }
+
+    @Override
+    public String getFingerprint() {
+        return "filename:" + includePattern.pattern() + ":" + excludePattern.map(Pattern::pattern).orElse("");
+    }
+
+    @Override
+    public boolean hasSizeLimit(String path) {
+        return false;
+    }
+
+    @Override
+    public boolean isTooLarge(String path, long objectSize) {
+        return false;
+    }
+
+    @Override
+    public boolean isForbidden(String path) {
+        return includePattern.matcher(path).find() && !(excludePattern.isPresent() && excludePattern.get().matcher(path).find());
+    }
 }
@@ -1,31 +1,37 @@
 package org.christiangalsterer.stash.filehooks.plugin.hook;
 
-import com.atlassian.bitbucket.commit.Commit;
-import com.atlassian.bitbucket.content.Change;
 import com.atlassian.bitbucket.hook.HookResponse;
 import com.atlassian.bitbucket.hook.repository.PreReceiveRepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookContext;
+import com.atlassian.bitbucket.hook.repository.RepositoryMergeRequestCheck;
+import com.atlassian.bitbucket.hook.repository.RepositoryMergeRequestCheckContext;
+import com.atlassian.bitbucket.i18n.I18nService;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.Command;
-import com.atlassian.bitbucket.scm.PluginCommandBuilderFactory;
 import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
 import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 
 import javax.annotation.Nonnull;
+import java.io.PrintWriter;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static com.google.common.collect.Iterables.addAll;
-import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isNotDeleteChange;
 import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.matchesBranchPattern;
 
 /**
  * Checks the size of a file in the pre-receive phase and rejects the push when the changeset contains files which exceed the configured file size limit.
+ *
+ * For repositories enforced asynchronously the push is accepted right away and verified by the {@link AsyncEnforcer},
+ * the merge check then vetoes pull requests from refs found violating the limits.
  */
-public class FileSizeHook implements PreReceiveRepositoryHook {
+public class FileSizeHook implements PreReceiveRepositoryHook, RepositoryMergeRequestCheck {
+
+    static final String HOOK_KEY = "filesize-hook";
 
     private static final int MAX_SETTINGS = 5;
     private static final String SETTINGS_INCLUDE_PATTERN_PREFIX = "pattern-";
@@ -33,28 +39,91 @@ public class FileSizeHook implements PreReceiveRepositoryHook {
     private static final String SETTINGS_SIZE_PREFIX = "size-";
     private static final String SETTINGS_BRANCHES_PATTERN_PREFIX = "pattern-branches-";
 
-    private final ChangesetService changesetService;
-    private final PluginCommandBuilderFactory commandFactory;
-
-    public FileSizeHook(ChangesetService changesetService, GitCommandBuilderFactory commandFactory) {
-        this.changesetService = changesetService;
-        this.commandFactory = commandFactory;
+    private static final List<String> REPORT_HEADER = Arrays.asList("=== File Size Hook ===", "");
+    private static final List<String> REPORT_FOOTER = Arrays.asList(
+            "",
+            "You may to consider to use Git Large File Storage in Bitbucket, see https://confluence.atlassian.com/bitbucket/git-large-file-storage-in-bitbucket-829078514.html",
+            "======================");
+
+    private final PushAnalysisService pushAnalysisService;
+    private final BlobSizer blobSizer;
+    private final FileHooksConfig config;
+    private final AdmissionController admissionController;
+    private final AsyncEnforcer asyncEnforcer;
+    private final HookExecutor executor;
+    private final TreeWalker treeWalker;
+    private final I18nService i18n;
+
+    public FileSizeHook(PushAnalysisService pushAnalysisService, BlobSizer blobSizer, FileHooksConfig config,
+                        AdmissionController admissionController, AsyncEnforcer asyncEnforcer, HookExecutor executor,
+                        GitCommandBuilderFactory commandFactory, TreeVerdictCache treeVerdictCache, I18nService i18n) {
+        this.pushAnalysisService = pushAnalysisService;
+        this.blobSizer = blobSizer;
+        this.config = config;
+        this.admissionController = admissionController;
+        this.asyncEnforcer = asyncEnforcer;
+        this.executor = executor;
+        this.treeWalker = new TreeWalker(commandFactory, treeVerdictCache);
+        this.i18n = i18n;
     }
 
     @Override
     public boolean onReceive(@Nonnull RepositoryHookContext context, @Nonnull Collection<RefChange> refChanges, @Nonnull HookResponse hookResponse) {
+        long start = System.nanoTime();
         Repository repository = context.getRepository();
         List<FileSizeHookSetting> settings = getSettings(context.getSettings());
 
-        FlatteningCachingResolver<Commit, Change> changesByCommit = new FlatteningCachingResolver<>();
-        CachingResolver<String, Long> sizesByContentId = new CachingResolver<>();
+        PushAnalysisContext pushContext = pushAnalysisService.getContext(repository, refChanges);
+        HookTrace trace = pushContext.startTrace();
+        try {
+            // Planning walks the new commits already, so it is admitted like the check itself
+            Optional<AdmissionController.Permit> permit = admissionController.admit(String.valueOf(repository.getId()));
+            if (!permit.isPresent()) {
+                hookResponse.err().println("File Size Hook: " + AdmissionController.REJECTED_MESSAGE);
+                return false;
+            }
+            try (AdmissionController.Permit ignored = permit.get()) {
+                if (pushContext.getPlan().getStrategy() == PushPlan.Strategy.SKIP) {
+                    return true;
+                }
+                if (config.isAsyncEnforced(repository) && verifyLater(repository, refChanges, settings, pushContext)) {
+                    return true;
+                }
+                return checkFileSizes(repository, refChanges, settings, pushContext, hookResponse.out(), config.isSizeFilterEnabled());
+            }
+        } finally {
+            pushContext.endTrace();
+            pushAnalysisService.returnContext(pushContext);
+            trace.logIfSlow("FileSizeHook", start, config.getSlowLogThresholdMillis(), refChanges, pushContext.getPlanIfMade());
+        }
+    }
 
-        Map<Long, Collection<String>> pathAndSizes = new HashMap<>();
+    /**
+     * Prepares the verification of the push, which is queued once the push was accepted. Returns false if the push
+     * has to be checked right away. Only the commits of the push are kept until then, the verification resolves
+     * their changes in a context of its own.
+     */
+    private boolean verifyLater(final Repository repository, Collection<RefChange> refChanges, List<FileSizeHookSetting> settings,
+                                PushAnalysisContext pushContext) {
+        // New commits are told apart from those of existing branches, so they have to be listed before the refs are
+        // updated. For the same reason git cannot filter the objects of the push once it was accepted.
+        PushAnalysisContext.Snapshot snapshot = pushContext.snapshot(refChanges);
+        Supplier<PushAnalysisContext> verificationContext = Suppliers.memoize(() ->
+                pushAnalysisService.restoreContext(repository, refChanges, snapshot));
+        return asyncEnforcer.prepare(repository, HOOK_KEY, refChanges, (refChange, out) ->
+                checkFileSizes(repository, Collections.singletonList(refChange), settings, verificationContext.get(), out, false));
+    }
+
+    private boolean checkFileSizes(final Repository repository, Collection<RefChange> refChanges, List<FileSizeHookSetting> settings,
+                                   PushAnalysisContext pushContext, PrintWriter out, boolean sizeFilter) {
+        ViolationReporter reporter = new ViolationReporter(out, REPORT_HEADER, REPORT_FOOTER,
+                config.getReportMaxDetailLines(), config.getReportMaxGroups());
 
+        // Git runs on the hook thread, only there it sees the objects of the push which are still in quarantine
+        boolean useObjectFilter = sizeFilter && pushContext.supportsObjectFilter();
+        List<ChangedFiles> changedFilesBySetting = new ArrayList<>();
+        List<Set<String>> oversizedBlobsBySetting = new ArrayList<>();
         for (FileSizeHookSetting setting : settings) {
-            Collection<String> violatingPaths = new ArrayList<>();
-            Pattern includePattern = setting.getIncludePattern();
-            Long maxFileSize = setting.getSize();
             Optional<Pattern> branchesPattern = setting.getBranchesPattern();
 
             Stream<RefChange> filteredRefChanges = refChanges.stream();
@@ -64,56 +133,83 @@ public class FileSizeHook implements PreReceiveRepositoryHook {
                         .filter(matchesBranchPattern(branchesPattern.get()));
             }
 
-            Set<Commit> commits =
-                    changesetService.getCommitsBetween(repository, filteredRefChanges.collect(Collectors.toSet()));
-
-            Set<Change> filteredChanges =
-                    changesByCommit.flatBatchResolve(commits, x -> changesetService.getChanges(repository, x)).stream()
-                            .filter(isNotDeleteChange)
-                            .filter(change -> {
-                                String fullPath = change.getPath().toString();
-                                return includePattern.matcher(fullPath).find()
-                                        && (!setting.getExcludePattern().isPresent()
-                                        || !setting.getExcludePattern().get().matcher(fullPath).find());
-                            })
-                            .collect(Collectors.toSet());
-
-            // Pre-populate cache by resolving all required changes at once
-            sizesByContentId.batchResolve(
-                    filteredChanges.stream().map(Change::getContentId).collect(Collectors.toSet()),
-                    contentIds -> getSizeForContentIds(repository, contentIds));
-
-            List<String> filteredPaths = filteredChanges.stream()
-                    .filter(change -> sizesByContentId.resolve(change.getContentId()) > maxFileSize)
-                    .map(change -> change.getPath().toString())
-                    .collect(Collectors.toList());
-
-            addAll(violatingPaths, filteredPaths);
-
-            if (pathAndSizes.containsKey(maxFileSize))
-                addAll(violatingPaths, pathAndSizes.get(maxFileSize));
-
-            pathAndSizes.put(maxFileSize, violatingPaths);
+            Set<RefChange> settingRefChanges = filteredRefChanges.collect(Collectors.toSet());
+            if (treeWalker.isCleanBranchCreation(settingRefChanges, pushContext, setting,
+                    contentIds -> blobSizer.getSizes(repository, contentIds))) {
+                oversizedBlobsBySetting.add(null);
+                changedFilesBySetting.add(null);
+                continue;
+            }
+            Set<String> oversizedBlobs = null;
+            if (useObjectFilter && setting.matchesAllPaths() && !branchesPattern.isPresent()) {
+                // Git finds the oversized blobs during its object walk, changes are only listed to report their paths.
+                // Only blobs new to the repository are found, content restored from older commits is not reported.
+                oversizedBlobs = pushContext.getOversizedBlobs(settingRefChanges, setting.getSize());
+            }
+            oversizedBlobsBySetting.add(oversizedBlobs);
+            changedFilesBySetting.add(oversizedBlobs != null && oversizedBlobs.isEmpty()
+                    ? null : pushContext.getChangedFiles(settingRefChanges));
         }
 
-        boolean hookPassed = true;
+        // Matching does not call git, so the settings are matched side by side
+        List<ChangedFiles> filteredFilesBySetting = pushContext.getTrace().time(HookTrace.Stage.MATCHING,
+                () -> executor.evaluate(IntStream.range(0, settings.size()).boxed().collect(Collectors.toList()), i -> {
+                    ChangedFiles changedFiles = changedFilesBySetting.get(i);
+                    Set<String> oversizedBlobs = oversizedBlobsBySetting.get(i);
+                    if (changedFiles == null) {
+                        return null;
+                    }
+                    if (oversizedBlobs != null) {
+                        return changedFiles.filterByContentId(oversizedBlobs::contains);
+                    }
+                    FileSizeHookSetting setting = settings.get(i);
+                    return changedFiles.filter(fullPath -> setting.getIncludePattern().matcher(fullPath).find()
+                            && (!setting.getExcludePattern().isPresent()
+                            || !setting.getExcludePattern().get().matcher(fullPath).find()));
+                }), filtered -> filtered.stream().filter(Objects::nonNull).mapToLong(ChangedFiles::size).sum());
+
+        // Ids of already reported paths by maximum file size
+        Map<Long, BitSet> pathAndSizes = new HashMap<>();
+
+        for (int s = 0; s < settings.size(); s++) {
+            Long maxFileSize = settings.get(s).getSize();
+            ChangedFiles filteredFiles = filteredFilesBySetting.get(s);
+            if (filteredFiles == null) {
+                continue;
+            }
 
-        for (Long maxFileSize : pathAndSizes.keySet()) {
-            Collection<String> paths = pathAndSizes.get(maxFileSize);
-            if (paths.size() > 0) {
-                hookPassed = false;
-                hookResponse.out().println("=== File Size Hook ===");
-                hookResponse.out().println("");
-                for (String path : paths) {
-                    hookResponse.out().println(String.format("File [%s] is too large. Maximum allowed file size is %s bytes.", path, maxFileSize));
+            // Resolve all required sizes at once
+            pushContext.resolveSizes(filteredFiles, contentIds -> blobSizer.getSizes(repository, contentIds));
+
+            BitSet violatingPaths = pathAndSizes.computeIfAbsent(maxFileSize, key -> new BitSet());
+            for (int i = 0; i < filteredFiles.size(); i++) {
+                long size = pushContext.getSize(filteredFiles, i);
+                if (size == PushAnalysisContext.NOT_A_BLOB || violatingPaths.get(filteredFiles.getPathId(i))) {
+                    continue;
+                }
+                if (size == PushAnalysisContext.UNKNOWN_SIZE) {
+                    // The limit cannot be checked without the size, so the file is not let through
+                    violatingPaths.set(filteredFiles.getPathId(i));
+                    String path = filteredFiles.getPath(i);
+                    reporter.report(path, size, String.format("Could not determine the size of file [%s].", path));
+                } else if (size > maxFileSize) {
+                    violatingPaths.set(filteredFiles.getPathId(i));
+                    String path = filteredFiles.getPath(i);
+                    reporter.report(path, size, String.format("File [%s] is too large. Maximum allowed file size is %s bytes.", path, maxFileSize));
                 }
-                hookResponse.out().println("");
-                hookResponse.out().println("You may to consider to use Git Large File Storage in Bitbucket, see https://confluence.atlassian.com/bitbucket/git-large-file-storage-in-bitbucket-829078514.html");
-                hookResponse.out().println("======================");
             }
         }
 
-        return hookPassed;
+        reporter.finish();
+
+        return !reporter.hasViolations();
+    }
+
+    @Override
+    public void check(@Nonnull RepositoryMergeRequestCheckContext context) {
+        asyncEnforcer.getFlag(context.getMergeRequest().getPullRequest(), HOOK_KEY).ifPresent(flag ->
+                context.getMergeRequest().veto(i18n.getText("filesize-hook.mergecheck.flagged",
+                        "File Size Hook: Commits pushed to this branch contain files which exceed the file size limit."), flag.getReport()));
     }
 
     private List<FileSizeHookSetting> getSettings(Settings settings) {
@@ -135,21 +231,4 @@ public class FileSizeHook implements PreReceiveRepositoryHook {
 
         return configurations;
     }
-
-    private Map<String, Long> getSizeForContentIds(final Repository repository, Iterable<String> contentIds) {
-        CatFileBatchCheckHandler handler = new CatFileBatchCheckHandler(contentIds);
-        Command<Map<String, Long>> cmd = commandFactory.builder(repository)
-                .command("cat-file")
-                .argument("--batch-check")
-                .inputHandler(handler)
-                .build(handler);
-        return filterOutNullSizes(cmd.call());
-    }
-
-    private Map<String, Long> filterOutNullSizes(Map<String, Long> sizes) {
-        return sizes.entrySet()
-                .stream()
-                .filter(entry -> entry.getValue() != null)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-    }
 }
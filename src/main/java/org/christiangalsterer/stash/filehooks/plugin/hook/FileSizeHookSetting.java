@@ -2,10 +2,15 @@ package org.christiangalsterer.stash.filehooks.plugin.hook;
 
 import com.google.common.base.Strings;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
-class FileSizeHookSetting {
+class FileSizeHookSetting implements TreeRules {
+
+    // Include patterns matching every path
+    private static final Collection<String> MATCH_ALL_PATTERNS = Arrays.asList("", ".", ".*", ".+", "^.*", "^.*$", "^.+$");
 
     private Long size;
     private Pattern includePattern;
@@ -34,4 +39,30 @@ class FileSizeHookSetting {
 
     Optional<Pattern> getBranchesPattern() { return branchesPattern; }
 
+    /**
+     * @return true if the setting applies to every file, regardless of its path
+     */
+    boolean matchesAllPaths() {
+        return !excludePattern.isPresent() && MATCH_ALL_PATTERNS.contains(includePattern.pattern());
+    }
+
+    @Override
+    public String getFingerprint() {
+        return "filesize:" + size + ":" + includePattern.pattern() + ":" + excludePattern.map(Pattern::pattern).orElse("");
+    }
+
+    @Override
+    public boolean hasSizeLimit(String path) {
+        return includePattern.matcher(path).find() && !(excludePattern.isPresent() && excludePattern.get().matcher(path).find());
+    }
+
+    @Override
+    public boolean isTooLarge(String path, long objectSize) {
+        return hasSizeLimit(path) && objectSize > size;
+    }
+
+    @Override
+    public boolean isForbidden(String path) {
+        return false;
+    }
 }
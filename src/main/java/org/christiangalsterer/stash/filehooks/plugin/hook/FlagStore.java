@@ -0,0 +1,102 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Persists the refs found violating a hook after their push was accepted, so that they stay blocked from merging
+ * across restarts and on all nodes of a cluster.
+ *
+ * Every flag is stored under a key of its own, made of the repository and a hash of the hook and the ref, so that
+ * flagging or clearing a ref is a single write which never overwrites the flags of other refs written by other
+ * nodes at the same time.
+ */
+class FlagStore {
+
+    private static final String PREFIX = "org.christiangalsterer.stash-filehooks-plugin.flags.";
+
+    private final PluginSettingsFactory pluginSettingsFactory;
+
+    FlagStore(PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+    }
+
+    void flag(Repository repository, Flag flag) {
+        pluginSettingsFactory.createGlobalSettings().put(toKey(repository, flag.getHook(), flag.getRefId()), flag.serialize());
+    }
+
+    void clear(Repository repository, String hook, String refId) {
+        pluginSettingsFactory.createGlobalSettings().remove(toKey(repository, hook, refId));
+    }
+
+    Optional<Flag> get(Repository repository, String hook, String refId) {
+        Object value = pluginSettingsFactory.createGlobalSettings().get(toKey(repository, hook, refId));
+        // The key only holds a hash of the hook and the ref
+        return value instanceof String ? Optional.of(Flag.deserialize((String) value)).filter(flag -> flag.matches(hook, refId))
+                : Optional.empty();
+    }
+
+    /**
+     * Keys of plugin settings are limited in length, ref names are not.
+     */
+    private static String toKey(Repository repository, String hook, String refId) {
+        return PREFIX + repository.getId() + "." + Hashing.murmur3_128().hashString(hook + ":" + refId, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A ref whose pushed commits violate a hook.
+     */
+    static class Flag {
+
+        private final String hook;
+        private final String refId;
+        private final String commitId;
+        private final String report;
+
+        Flag(String hook, String refId, String commitId, String report) {
+            this.hook = hook;
+            this.refId = refId;
+            this.commitId = commitId;
+            this.report = report;
+        }
+
+        String getHook() {
+            return hook;
+        }
+
+        String getRefId() {
+            return refId;
+        }
+
+        /**
+         * @return tip of the ref when the violation was found
+         */
+        String getCommitId() {
+            return commitId;
+        }
+
+        /**
+         * @return report of the violations, as it would have been written to the git client
+         */
+        String getReport() {
+            return report;
+        }
+
+        private boolean matches(String hook, String refId) {
+            return this.hook.equals(hook) && this.refId.equals(refId);
+        }
+
+        String serialize() {
+            return hook + "\t" + refId + "\t" + commitId + "\t" + report;
+        }
+
+        static Flag deserialize(String value) {
+            String[] split = value.split("\t", 4);
+            return new Flag(split[0], split[1], split[2], split[3]);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * Emits {@link StageEvent}s if JDK Flight Recorder is available.
+ *
+ * The plugin still runs on Java 8 runtimes without {@code jdk.jfr}, where {@link StageEvent} cannot be loaded.
+ * It is therefore only referenced once its super class was found.
+ */
+final class FlightRecorderEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * @return the started event, or null if Flight Recorder is not available
+     */
+    static Object begin() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commit(Object event, String repository, String stage, long count) {
+        if (event == null) {
+            return;
+        }
+        StageEvent stageEvent = (StageEvent) event;
+        stageEvent.end();
+        if (stageEvent.shouldCommit()) {
+            stageEvent.repository = repository;
+            stageEvent.stage = stage;
+            stageEvent.count = count;
+            stageEvent.commit();
+        }
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Bounded pool of threads shared by all hook evaluations on this node, used to match the files of large pushes
+ * against the patterns concurrently, and to evaluate independent hook settings side by side.
+ *
+ * Only work which does not call git runs on the pool. Git commands of a hook stay on the hook thread, as only there they see the
+ * objects of a push which are still in quarantine, and run with the permissions of the pushing user.
+ *
+ * Matching runs on a separate fork-join pool rather than on the common pool, which is shared with Bitbucket
+ * itself.
+ */
+public class HookExecutor implements LifecycleAware {
+
+    private final ForkJoinPool matchingPool;
+    private final int parallelism;
+    private final int parallelMatchingThreshold;
+
+    public HookExecutor(FileHooksConfig config) {
+        this.parallelism = config.getParallelThreads();
+        this.parallelMatchingThreshold = config.getParallelMatchingThreshold();
+        this.matchingPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("filehooks-matcher-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Tests all elements against the predicate, in parallel if there are many of them.
+     *
+     * @param elements elements to test
+     * @param predicate thread safe predicate
+     * @return indexes of the matching elements in ascending order
+     */
+    <T> int[] match(List<T> elements, Predicate<T> predicate) {
+        IntStream indexes = IntStream.range(0, elements.size());
+        if (elements.size() < parallelMatchingThreshold || parallelism < 2) {
+            return indexes.filter(i -> predicate.test(elements.get(i))).toArray();
+        }
+        if (ForkJoinTask.getPool() == matchingPool) {
+            // Matching as part of an evaluation, the parallel stream runs on the pool already
+            return indexes.parallel().filter(i -> predicate.test(elements.get(i))).toArray();
+        }
+        // Parallel streams started from a fork-join pool run on that pool, toArray keeps the order
+        return get(matchingPool.submit(() -> indexes.parallel().filter(i -> predicate.test(elements.get(i))).toArray()));
+    }
+
+    /**
+     * Applies the function to all elements concurrently, e.g. to match the files of a push against the patterns of
+     * each hook setting. The function must not call git, which has to run on the hook thread.
+     *
+     * @param elements elements to apply the function to
+     * @param function thread safe function
+     * @return the results in the order of the elements
+     */
+    <T, R> List<R> evaluate(List<T> elements, Function<T, R> function) {
+        if (elements.size() < 2 || parallelism < 2) {
+            return elements.stream().map(function).collect(Collectors.toList());
+        }
+        return get(matchingPool.submit(() -> elements.parallelStream().map(function).collect(Collectors.toList())));
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onStop() {
+        matchingPool.shutdownNow();
+    }
+
+    private static <R> R get(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for hook evaluation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Records how long each stage of checking a push or pull request took, how often it ran and how many items it
+ * handled.
+ *
+ * Every stage is also emitted as a JDK Flight Recorder event where the JVM supports it. Checks slower than the
+ * configured threshold are written to the {@value #SLOW_LOG} log with their stage breakdown, so that a single
+ * slow push can be explained after the fact.
+ */
+public class HookTrace {
+
+    static final String SLOW_LOG = "org.christiangalsterer.stash.filehooks.slow";
+
+    private static final Logger slowLog = LoggerFactory.getLogger(SLOW_LOG);
+
+    enum Stage {
+        PLAN("plan"),
+        REV_LIST("rev-list"),
+        CHANGESETS("changesets"),
+        DIFF_TREE("diff-tree"),
+        CAT_FILE("cat-file"),
+        TREES("trees"),
+        MATCHING("matching"),
+        MERGE_BASE("merge-base");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    private final String repository;
+    private final long[] calls = new long[Stage.values().length];
+    private final long[] items = new long[Stage.values().length];
+    private final long[] nanos = new long[Stage.values().length];
+
+    HookTrace(Repository repository) {
+        this.repository = repository.getProject().getKey() + "/" + repository.getSlug();
+    }
+
+    void time(Stage stage, Runnable work) {
+        time(stage, () -> {
+            work.run();
+            return null;
+        }, result -> 0);
+    }
+
+    /**
+     * Runs a stage and records it.
+     *
+     * @param stage stage to record
+     * @param work work of the stage
+     * @param count number of items handled, derived from the result
+     * @return result of the work
+     */
+    <T> T time(Stage stage, Supplier<T> work, ToLongFunction<T> count) {
+        Object event = FlightRecorderEvents.begin();
+        long start = System.nanoTime();
+        long itemCount = 0;
+        try {
+            T result = work.get();
+            itemCount = count.applyAsLong(result);
+            return result;
+        } finally {
+            record(stage, System.nanoTime() - start, itemCount);
+            FlightRecorderEvents.commit(event, repository, stage.getLabel(), itemCount);
+        }
+    }
+
+    private synchronized void record(Stage stage, long duration, long count) {
+        calls[stage.ordinal()]++;
+        items[stage.ordinal()] += count;
+        nanos[stage.ordinal()] += duration;
+    }
+
+    /**
+     * @return stages which ran, e.g. {@code rev-list=120ms/2/5000} for two calls taking 120ms for 5000 items
+     */
+    synchronized String getStages() {
+        StringJoiner stages = new StringJoiner(" ");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (calls[i] > 0) {
+                stages.add(stage.getLabel() + "=" + TimeUnit.NANOSECONDS.toMillis(nanos[i]) + "ms/" + calls[i] + "/" + items[i]);
+            }
+        }
+        return stages.toString();
+    }
+
+    /**
+     * Logs a push check if it took longer than the threshold.
+     *
+     * @param hook name of the hook
+     * @param startNanos {@link System#nanoTime()} when the hook was called
+     * @param thresholdMillis threshold in milliseconds
+     */
+    void logIfSlow(String hook, long startNanos, long thresholdMillis, Collection<RefChange> refChanges, Optional<PushPlan> plan) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (elapsed >= thresholdMillis && slowLog.isWarnEnabled()) {
+            StringJoiner refs = new StringJoiner(",");
+            refChanges.forEach(refChange -> refs.add(refChange.getRef().getId() + ":" + refChange.getFromHash() + ":"
+                    + refChange.getToHash() + ":" + refChange.getType()));
+            slowLog.warn("hook={} repository={} elapsedMs={} plan={} commits={} refChanges=[{}] stages=[{}]",
+                    hook, repository, elapsed, plan.map(PushPlan::getStrategy).orElse(null),
+                    plan.map(PushPlan::getCommitCount).orElse(0), refs, getStages());
+        }
+    }
+
+    /**
+     * Logs a pull request check if it took longer than the threshold.
+     */
+    void logIfSlow(String hook, long startNanos, long thresholdMillis, long pullRequestId) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (elapsed >= thresholdMillis && slowLog.isWarnEnabled()) {
+            slowLog.warn("hook={} repository={} elapsedMs={} pullRequest={} stages=[{}]",
+                    hook, repository, elapsed, pullRequestId, getStages());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Assigns dense int indexes to git object ids.
+ *
+ * Ids are kept packed as 20 bytes each in insertion order and looked up through a primitive open addressing
+ * table, instead of holding a 40 character {@link String} per id. Once the packed ids and the table together
+ * grow beyond the spill threshold, both are moved to memory-mapped temporary files, so that they no longer live
+ * on the heap.
+ *
+ * Instances are not thread safe.
+ */
+class ObjectIdIndex {
+
+    static final int ID_LENGTH = 20;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long spillThreshold;
+    private boolean spilled;
+    private ByteBuffer ids;
+    private IntBuffer slots;
+    private int size;
+
+    /**
+     * @param spillThreshold number of bytes of packed ids and lookup table above which they are moved to memory-mapped files
+     */
+    ObjectIdIndex(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        spillIfNeeded((long) INITIAL_CAPACITY * ID_LENGTH + INITIAL_CAPACITY * 2 * 4L);
+        this.ids = allocate((long) INITIAL_CAPACITY * ID_LENGTH);
+        this.slots = allocate(INITIAL_CAPACITY * 2 * 4L).asIntBuffer();
+    }
+
+    /**
+     * Adds the id, if not yet present.
+     *
+     * @param id 40 character hex object id
+     * @return index of the id
+     */
+    int add(String id) {
+        return add(pack(id));
+    }
+
+    /**
+     * Adds the id, if not yet present.
+     *
+     * @param packed object id packed as by {@link #pack}
+     * @return index of the id
+     */
+    int add(byte[] packed) {
+        int slot = findSlot(packed);
+        if (slots.get(slot) != 0) {
+            return slots.get(slot) - 1;
+        }
+
+        if (size * ID_LENGTH == ids.capacity()) {
+            spillIfNeeded(ids.capacity() * 2L);
+            ids = copy(ids, ids.capacity() * 2L, size * ID_LENGTH);
+        }
+        ids.position(size * ID_LENGTH);
+        ids.put(packed);
+        slots.put(slot, ++size);
+
+        if (size * 2 > slots.capacity()) {
+            rehash(slots.capacity() * 2);
+        }
+        return size - 1;
+    }
+
+    /**
+     * @param id 40 character hex object id
+     * @return index of the id or -1 when it is not present
+     */
+    int indexOf(String id) {
+        return slots.get(findSlot(pack(id))) - 1;
+    }
+
+    /**
+     * @param index index of a previously added id
+     * @return 40 character hex object id
+     */
+    String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        char[] chars = new char[ID_LENGTH * 2];
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int b = ids.get(index * ID_LENGTH + i) & 0xff;
+            chars[i * 2] = HEX[b >>> 4];
+            chars[i * 2 + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * @return number of bytes of packed ids and lookup table held on the heap, none once they were spilled
+     */
+    long getHeapBytes() {
+        return spilled ? 0 : ids.capacity() + slots.capacity() * 4L;
+    }
+
+    private int findSlot(byte[] packed) {
+        int mask = slots.capacity() - 1;
+        int slot = hash(packed) & mask;
+        while (slots.get(slot) != 0 && !matches(slots.get(slot) - 1, packed)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int index, byte[] packed) {
+        int offset = index * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            if (ids.get(offset + i) != packed[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        spillIfNeeded(capacity * 4L);
+        slots = allocate(capacity * 4L).asIntBuffer();
+        int mask = capacity - 1;
+        byte[] packed = new byte[ID_LENGTH];
+        for (int index = 0; index < size; index++) {
+            ids.position(index * ID_LENGTH);
+            ids.get(packed);
+            int slot = hash(packed) & mask;
+            while (slots.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot, index + 1);
+        }
+    }
+
+    /**
+     * Moves the ids and the table to memory-mapped files if allocating the given number of bytes more on the heap
+     * would exceed the spill threshold. Buffers allocated afterwards are mapped as well.
+     */
+    private void spillIfNeeded(long bytes) {
+        if (spilled || (ids == null ? 0 : getHeapBytes()) + bytes <= spillThreshold) {
+            return;
+        }
+        spilled = true;
+        if (ids != null) {
+            ids = copy(ids, ids.capacity(), size * ID_LENGTH);
+            ByteBuffer slotBytes = allocate(slots.capacity() * 4L);
+            slots.position(0);
+            slotBytes.asIntBuffer().put(slots);
+            slots = slotBytes.asIntBuffer();
+        }
+    }
+
+    private ByteBuffer copy(ByteBuffer source, long capacity, int length) {
+        ByteBuffer target = allocate(capacity);
+        ByteBuffer copy = source.duplicate();
+        copy.position(0);
+        copy.limit(length);
+        target.put(copy);
+        return target;
+    }
+
+    private ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many object ids: " + size);
+        }
+        if (!spilled) {
+            return ByteBuffer.allocate((int) bytes);
+        }
+        try {
+            File file = File.createTempFile("filehooks-ids", ".bin");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } finally {
+                // The mapping stays valid after the file is removed, the space is freed once the buffer is collected
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int hash(byte[] packed) {
+        // Object ids are uniformly distributed already
+        return (packed[0] & 0xff) << 24 | (packed[1] & 0xff) << 16 | (packed[2] & 0xff) << 8 | (packed[3] & 0xff);
+    }
+
+    static byte[] pack(String id) {
+        if (id == null || id.length() != ID_LENGTH * 2) {
+            throw new IllegalArgumentException("Not an object id: " + id);
+        }
+        byte[] packed = new byte[ID_LENGTH];
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int high = Character.digit(id.charAt(i * 2), 16);
+            int low = Character.digit(id.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not an object id: " + id);
+            }
+            packed[i] = (byte) (high << 4 | low);
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,441 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the sizes of objects directly from the object database of a repository, without forking git.
+ *
+ * Pack indexes and packs are memory-mapped and only object headers are read: the size of a delta is taken from
+ * the result size at the start of its delta data, so at most a few bytes of any object are inflated. Loose
+ * objects and the object directories listed in {@code objects/info/alternates} are read as well. The quarantine
+ * directory in which git keeps the objects of a push until the pre-receive hooks accepted it is read by a reader
+ * of its own, see {@link BlobSizer}.
+ *
+ * Objects the reader cannot find or read (e.g. pack index version 1, a pack rewritten while reading it or a
+ * corrupt object) are handed back to the caller, who is expected to ask {@code git cat-file} for them.
+ *
+ * A reader only knows the packs which existed when it was created and may be shared between threads. Mappings
+ * are never released explicitly, as unmapping a buffer another thread still reads from crashes the JVM. They
+ * are released by the garbage collector once the reader and all buffers obtained from it are unreachable.
+ */
+class PackObjectSizeReader {
+
+    private static final int OBJ_COMMIT = 1;
+    private static final int OBJ_BLOB = 3;
+    private static final int OBJ_TAG = 4;
+    private static final int OBJ_OFS_DELTA = 6;
+    private static final int OBJ_REF_DELTA = 7;
+
+    private static final int IDX_MAGIC = 0xff744f63;
+    private static final int IDX_HEADER_LENGTH = 8 + 256 * 4;
+    private static final int ID_LENGTH = 20;
+
+    // Packs larger than a segment are mapped in overlapping segments, so that every header fits into one of them
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int SEGMENT_OVERLAP = 1 << 16;
+
+    private static final int MAX_DELTA_CHAIN = 10000;
+    private static final int MAX_ALTERNATES_DEPTH = 5;
+
+    private final File objectsDir;
+    private final List<File> objectDirs;
+    private final String packSet;
+    private final List<Pack> packs = new ArrayList<>();
+
+    PackObjectSizeReader(File objectsDir) {
+        this.objectsDir = objectsDir;
+        this.objectDirs = listObjectDirs(objectsDir);
+        List<File> indexes = listIndexes(objectDirs);
+        this.packSet = toPackSet(objectDirs, indexes);
+        for (File index : indexes) {
+            try {
+                Pack pack = Pack.open(index);
+                if (pack != null) {
+                    packs.add(pack);
+                }
+            } catch (IOException e) {
+                // Objects of this pack are left to git
+            }
+        }
+    }
+
+    /**
+     * @return false if alternates or packs were added or removed since the reader was created, e.g. by a push or a
+     * gc. Quarantine directories of pushes in progress are not read and do not outdate the reader.
+     */
+    boolean isCurrent() {
+        List<File> currentObjectDirs = listObjectDirs(objectsDir);
+        return packSet.equals(toPackSet(currentObjectDirs, listIndexes(currentObjectDirs)));
+    }
+
+    /**
+     * Returns the sizes of the given blobs.
+     *
+     * @param objectIds ids of the objects to size
+     * @param unreadable receives the ids which could not be read and have to be sized by git
+     * @return sizes by id of all objects read which are blobs
+     */
+    Map<String, Long> getBlobSizes(Iterable<String> objectIds, Collection<String> unreadable) {
+        Map<String, Long> sizes = new HashMap<>();
+        for (String objectId : objectIds) {
+            long[] typeAndSize = null;
+            try {
+                typeAndSize = readTypeAndSize(ObjectIdIndex.pack(objectId));
+            } catch (IOException | RuntimeException e) {
+                // Left to git
+            }
+            if (typeAndSize == null) {
+                unreadable.add(objectId);
+            } else if (typeAndSize[0] == OBJ_BLOB) {
+                sizes.put(objectId, typeAndSize[1]);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * @return type and size of the object, or null if it was not found
+     */
+    long[] readTypeAndSize(byte[] id) throws IOException {
+        for (Pack pack : packs) {
+            long offset = pack.find(id);
+            if (offset >= 0) {
+                return readPacked(pack, offset);
+            }
+        }
+        return readLoose(id);
+    }
+
+    private long[] readPacked(Pack pack, long offset) throws IOException {
+        long size = -1;
+        for (int depth = 0; depth < MAX_DELTA_CHAIN; depth++) {
+            ByteBuffer buffer = pack.window(offset);
+            int c = buffer.get() & 0xff;
+            int type = (c >> 4) & 7;
+            long objectSize = c & 15;
+            int shift = 4;
+            while ((c & 0x80) != 0) {
+                c = buffer.get() & 0xff;
+                objectSize |= (long) (c & 0x7f) << shift;
+                shift += 7;
+            }
+
+            if (type >= OBJ_COMMIT && type <= OBJ_TAG) {
+                return new long[]{type, size < 0 ? objectSize : size};
+            } else if (type == OBJ_OFS_DELTA) {
+                c = buffer.get() & 0xff;
+                long baseDistance = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = buffer.get() & 0xff;
+                    baseDistance = ((baseDistance + 1) << 7) | (c & 0x7f);
+                }
+                if (size < 0) {
+                    size = readDeltaResultSize(buffer);
+                }
+                offset -= baseDistance;
+            } else if (type == OBJ_REF_DELTA) {
+                byte[] baseId = new byte[ID_LENGTH];
+                buffer.get(baseId);
+                if (size < 0) {
+                    size = readDeltaResultSize(buffer);
+                }
+                offset = pack.find(baseId);
+                if (offset < 0) {
+                    // Base in another pack or loose, only the type is still needed from it
+                    long[] base = readTypeAndSize(baseId);
+                    return base == null ? null : new long[]{base[0], size};
+                }
+            } else {
+                throw new IOException("Unknown object type " + type + " in " + pack.packFile);
+            }
+        }
+        throw new IOException("Delta chain too long in " + pack.packFile);
+    }
+
+    /**
+     * Inflates just enough of the delta data to read its header: the size of the base and the size of the result.
+     */
+    private static long readDeltaResultSize(ByteBuffer buffer) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            byte[] input = new byte[64];
+            byte[] header = new byte[2 * 10];
+            int length = 0;
+            while (length < header.length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int chunk = Math.min(input.length, buffer.remaining());
+                    if (chunk == 0) {
+                        break;
+                    }
+                    buffer.get(input, 0, chunk);
+                    inflater.setInput(input, 0, chunk);
+                }
+                length += inflater.inflate(header, length, header.length - length);
+                if (hasDeltaHeader(header, length)) {
+                    break;
+                }
+            }
+            if (!hasDeltaHeader(header, length)) {
+                throw new IOException("Truncated delta header");
+            }
+            int pos = 0;
+            while ((header[pos++] & 0x80) != 0) {
+                // Skip size of the base
+            }
+            long size = 0;
+            int shift = 0;
+            int c;
+            do {
+                c = header[pos++] & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+                shift += 7;
+            } while ((c & 0x80) != 0);
+            return size;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean hasDeltaHeader(byte[] header, int length) {
+        int terminated = 0;
+        for (int i = 0; i < length && terminated < 2; i++) {
+            if ((header[i] & 0x80) == 0) {
+                terminated++;
+            }
+        }
+        return terminated == 2;
+    }
+
+    private long[] readLoose(byte[] id) throws IOException {
+        String hex = toHex(id);
+        for (File objectDir : objectDirs) {
+            File file = new File(new File(objectDir, hex.substring(0, 2)), hex.substring(2));
+            if (!file.isFile()) {
+                continue;
+            }
+            try (InputStream in = new InflaterInputStream(new FileInputStream(file))) {
+                // <type> <size>\0
+                StringBuilder header = new StringBuilder();
+                int c;
+                while ((c = in.read()) > 0 && header.length() < 32) {
+                    header.append((char) c);
+                }
+                String[] split = header.toString().split(" ");
+                if (c != 0 || split.length != 2) {
+                    throw new IOException("Invalid loose object header in " + file);
+                }
+                return new long[]{toType(split[0]), Long.parseLong(split[1])};
+            }
+        }
+        return null;
+    }
+
+    private static int toType(String type) throws IOException {
+        switch (type) {
+            case "commit": return OBJ_COMMIT;
+            case "tree": return 2;
+            case "blob": return OBJ_BLOB;
+            case "tag": return OBJ_TAG;
+            default: throw new IOException("Unknown object type " + type);
+        }
+    }
+
+    private static List<File> listObjectDirs(File objectsDir) {
+        List<File> objectDirs = new ArrayList<>();
+        Set<File> visited = new HashSet<>();
+        addObjectDir(objectsDir, objectDirs, visited, 0);
+        return objectDirs;
+    }
+
+    private static void addObjectDir(File objectDir, List<File> objectDirs, Set<File> visited, int depth) {
+        File canonical;
+        try {
+            canonical = objectDir.getCanonicalFile();
+        } catch (IOException e) {
+            return;
+        }
+        if (!canonical.isDirectory() || !visited.add(canonical)) {
+            return;
+        }
+        objectDirs.add(canonical);
+
+        File alternates = new File(canonical, "info/alternates");
+        if (depth < MAX_ALTERNATES_DEPTH && alternates.isFile()) {
+            try {
+                for (String line : Files.readAllLines(alternates.toPath(), StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        File alternate = new File(line);
+                        addObjectDir(alternate.isAbsolute() ? alternate : new File(canonical, line), objectDirs, visited, depth + 1);
+                    }
+                }
+            } catch (IOException e) {
+                // Objects of the alternates are left to git
+            }
+        }
+    }
+
+    private static List<File> listIndexes(List<File> objectDirs) {
+        List<File> indexes = new ArrayList<>();
+        for (File objectDir : objectDirs) {
+            File[] packIndexes = new File(objectDir, "pack").listFiles((dir, name) -> name.endsWith(".idx"));
+            if (packIndexes != null) {
+                Arrays.sort(packIndexes);
+                indexes.addAll(Arrays.asList(packIndexes));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Describes the object directories and pack indexes, a pack rewritten in place changes its size or time.
+     */
+    private static String toPackSet(List<File> objectDirs, List<File> indexes) {
+        StringBuilder packSet = new StringBuilder();
+        objectDirs.forEach(objectDir -> packSet.append(objectDir).append('\n'));
+        indexes.forEach(index -> packSet.append(index).append(' ').append(index.length()).append(' ')
+                .append(index.lastModified()).append('\n'));
+        return packSet.toString();
+    }
+
+    private static String toHex(byte[] id) {
+        StringBuilder hex = new StringBuilder(id.length * 2);
+        for (byte b : id) {
+            hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A pack with a version 2 index. The pack itself is only mapped once an object is found in it.
+     */
+    private static class Pack {
+
+        private final File packFile;
+        private final MappedByteBuffer index;
+        private final int count;
+        private MappedByteBuffer[] segments;
+
+        private Pack(File packFile, MappedByteBuffer index, int count) {
+            this.packFile = packFile;
+            this.index = index;
+            this.count = count;
+        }
+
+        static Pack open(File indexFile) throws IOException {
+            File packFile = new File(indexFile.getPath().replaceAll("\\.idx$", ".pack"));
+            if (!packFile.isFile()) {
+                return null;
+            }
+            MappedByteBuffer index;
+            try (FileChannel channel = FileChannel.open(indexFile.toPath())) {
+                if (channel.size() < IDX_HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                    return null;
+                }
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (index.getInt(0) != IDX_MAGIC || index.getInt(4) != 2) {
+                return null;
+            }
+            int count = index.getInt(IDX_HEADER_LENGTH - 4);
+            if (count < 0 || IDX_HEADER_LENGTH + (long) count * (ID_LENGTH + 8) > index.capacity()) {
+                return null;
+            }
+            return new Pack(packFile, index, count);
+        }
+
+        /**
+         * @return offset of the object in the pack, or -1 if it is not in this pack
+         */
+        long find(byte[] id) throws IOException {
+            int first = id[0] & 0xff;
+            int low = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+            int high = index.getInt(8 + first * 4) - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(IDX_HEADER_LENGTH + mid * ID_LENGTH, id);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return offset(mid);
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int position, byte[] id) {
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int cmp = (index.get(position + i) & 0xff) - (id[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        private long offset(int n) throws IOException {
+            long offsets = IDX_HEADER_LENGTH + (long) count * (ID_LENGTH + 4);
+            int offset = index.getInt(toPosition(offsets + n * 4L, 4));
+            if (offset >= 0) {
+                return offset;
+            }
+            long largeOffsets = offsets + count * 4L;
+            return index.getLong(toPosition(largeOffsets + (offset & 0x7fffffffL) * 8, 8));
+        }
+
+        private int toPosition(long position, int length) throws IOException {
+            if (position + length > index.capacity()) {
+                throw new IOException("Invalid offset table in " + packFile);
+            }
+            return (int) position;
+        }
+
+        /**
+         * @return buffer positioned at the given offset, with at least the following header bytes remaining
+         */
+        synchronized ByteBuffer window(long offset) throws IOException {
+            if (segments == null) {
+                try (FileChannel channel = FileChannel.open(packFile.toPath())) {
+                    long length = channel.size();
+                    MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                    for (int i = 0; i < mapped.length; i++) {
+                        long start = i * SEGMENT_SIZE;
+                        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                Math.min(length - start, SEGMENT_SIZE + SEGMENT_OVERLAP));
+                    }
+                    segments = mapped;
+                }
+            }
+            int segment = (int) (offset / SEGMENT_SIZE);
+            if (offset < 12 || segment >= segments.length) {
+                throw new IOException("Invalid offset " + offset + " in " + packFile);
+            }
+            ByteBuffer buffer = segments[segment].duplicate();
+            buffer.position((int) (offset - segment * SEGMENT_SIZE));
+            return buffer;
+        }
+    }
+}
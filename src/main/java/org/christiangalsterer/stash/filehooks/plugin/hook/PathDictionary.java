@@ -0,0 +1,49 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense int ids to paths, so that every distinct path is held only once per push no matter how many
+ * commits or rules refer to it.
+ *
+ * Unlike {@link ObjectIdIndex} the paths are never spilled, they are kept on the heap and weighed as part of the
+ * working set of the push.
+ *
+ * Instances are not thread safe.
+ */
+class PathDictionary {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> paths = new ArrayList<>();
+    private long chars;
+
+    int add(String path) {
+        Integer id = ids.get(path);
+        if (id == null) {
+            id = paths.size();
+            ids.put(path, id);
+            paths.add(path);
+            chars += path.length();
+        }
+        return id;
+    }
+
+    String get(int id) {
+        return paths.get(id);
+    }
+
+    int size() {
+        return paths.size();
+    }
+
+    /**
+     * @return estimated number of bytes held on the heap, assuming two bytes per character and about 100 bytes for
+     * the string, map entry and boxed id of every path
+     */
+    long getHeapBytes() {
+        return chars * 2 + paths.size() * 100L;
+    }
+}
@@ -17,6 +17,11 @@ class Predicates {
      */
     static final Predicate<RefChange> isNotDeleteRefChange = refChange -> !refChange.getType().equals(RefChangeType.DELETE);
 
+    /**
+     * Predicate to check that a ref change creates a ref.
+     */
+    static final Predicate<RefChange> isAddRefChange = refChange -> refChange.getType().equals(RefChangeType.ADD);
+
     /**
      * Predicate to check that a ref change is not a tag operation.
      */
@@ -0,0 +1,549 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.commit.Changeset;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ContentTreeNode;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.util.Page;
+import com.google.common.collect.Iterables;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isNotDeleteChange;
+
+/**
+ * Holds everything resolved for a single push, so that it is computed once no matter how many hooks or hook
+ * settings ask for it.
+ *
+ * Commits are cached per ref change subset, as hooks filter ref changes by type and branch pattern before
+ * asking for them. Changes and blob sizes are cached per commit and content id and shared between all subsets.
+ * They are held in a compact working set of packed object ids, path ids and primitive arrays instead of
+ * Bitbucket {@link Change} objects, so that large pushes do not flood the heap.
+ */
+public class PushAnalysisContext {
+
+    static final long UNKNOWN_SIZE = -1;
+    static final long NOT_A_BLOB = -2;
+
+    private static final long[] NO_FILES = new long[0];
+
+    private final Repository repository;
+    private final Collection<RefChange> refChanges;
+    private final ChangesetService changesetService;
+    private final PushPlanner planner;
+    private final HookExecutor executor;
+    private final ThreadLocal<HookTrace> traces = new ThreadLocal<>();
+    private final Map<String, int[]> commitsByRefChanges = new HashMap<>();
+    private final Map<String, Set<String>> oversizedBlobsByRefChanges = new HashMap<>();
+    private final ObjectIdIndex commitIds;
+    private final ObjectIdIndex contentIds;
+    private final PathDictionary paths = new PathDictionary();
+    private final List<long[]> filesByCommit = new ArrayList<>();
+    private long[] sizes = new long[0];
+    private PushPlan plan;
+
+    PushAnalysisContext(Repository repository, Collection<RefChange> refChanges, ChangesetService changesetService,
+                        PushPlanner planner, HookExecutor executor, long spillThreshold) {
+        this.repository = repository;
+        this.refChanges = refChanges;
+        this.changesetService = changesetService;
+        this.planner = planner;
+        this.executor = executor;
+        this.commitIds = new ObjectIdIndex(spillThreshold);
+        this.contentIds = new ObjectIdIndex(spillThreshold);
+    }
+
+    /**
+     * Creates a context for a push whose commits were listed before its refs were updated.
+     */
+    PushAnalysisContext(Repository repository, Collection<RefChange> refChanges, ChangesetService changesetService,
+                        PushPlanner planner, HookExecutor executor, long spillThreshold, Snapshot snapshot) {
+        this(repository, refChanges, changesetService, planner, executor, spillThreshold);
+        this.plan = snapshot.plan;
+        byte[] id = new byte[ObjectIdIndex.ID_LENGTH];
+        for (Map.Entry<String, byte[]> entry : snapshot.commitsByRefChanges.entrySet()) {
+            byte[] packed = entry.getValue();
+            int[] commits = new int[packed.length / id.length];
+            for (int i = 0; i < commits.length; i++) {
+                System.arraycopy(packed, i * id.length, id, 0, id.length);
+                commits[i] = commitIds.add(id);
+            }
+            commitsByRefChanges.put(entry.getKey(), commits);
+        }
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    Collection<RefChange> getRefChanges() {
+        return refChanges;
+    }
+
+    /**
+     * Starts the trace of a hook invocation on the current thread. Until it is ended, the stages this context runs
+     * on the thread are recorded in it, so that the trace neither contains the work of other hooks of the push nor
+     * of earlier attempts.
+     *
+     * @return trace of the invocation
+     */
+    public HookTrace startTrace() {
+        HookTrace trace = new HookTrace(repository);
+        traces.set(trace);
+        return trace;
+    }
+
+    public void endTrace() {
+        traces.remove();
+    }
+
+    /**
+     * @return trace of the hook invocation on the current thread, or a trace nobody reads if none was started
+     */
+    public HookTrace getTrace() {
+        HookTrace trace = traces.get();
+        return trace != null ? trace : new HookTrace(repository);
+    }
+
+    /**
+     * Returns how this push is evaluated. The plan is made once, when it is first asked for.
+     *
+     * @return plan for all ref changes of this push
+     */
+    public synchronized PushPlan getPlan() {
+        if (plan == null) {
+            plan = getTrace().time(HookTrace.Stage.PLAN, () -> planner.plan(repository, refChanges), PushPlan::getCommitCount);
+        }
+        return plan;
+    }
+
+    /**
+     * @return plan of the push if it was made already, e.g. for logging without making it
+     */
+    synchronized Optional<PushPlan> getPlanIfMade() {
+        return Optional.ofNullable(plan);
+    }
+
+    /**
+     * Lists the commits introduced by each of the given ref changes on its own and returns them together with the
+     * plan of the push.
+     *
+     * Once the refs were updated, the new commits can no longer be told apart from those of existing branches. A
+     * push verified after it was accepted therefore keeps a snapshot until it is verified, instead of this context.
+     *
+     * The new commits of all ref changes are walked by git once. Every commit reachable from a new ref through new
+     * commits only is new to that ref, so the commits of each ref change are found by following the parents of the
+     * walk from its new tip.
+     *
+     * @param refChanges ref changes of this push
+     * @return snapshot to create a context from with {@link PushAnalysisService#restoreContext}
+     */
+    synchronized Snapshot snapshot(Collection<RefChange> refChanges) {
+        Map<Integer, int[]> parentsByCommit = new HashMap<>();
+        int[] pushCommits = getTrace().time(HookTrace.Stage.REV_LIST, () -> {
+            IntStream.Builder commits = IntStream.builder();
+            changesetService.streamCommitParentsBetween(repository, refChanges, (commitId, parentIds) -> {
+                int commit = commitIds.add(commitId);
+                commits.add(commit);
+                parentsByCommit.put(commit, parentIds.stream().mapToInt(commitIds::add).toArray());
+            });
+            return commits.build().toArray();
+        }, commits -> commits.length);
+        commitsByRefChanges.putIfAbsent(toKey(refChanges), pushCommits);
+
+        Map<String, byte[]> commits = new HashMap<>();
+        for (RefChange refChange : refChanges) {
+            Collection<RefChange> singleRefChange = Collections.singletonList(refChange);
+            int[] refCommits = getReachableCommits(refChange, pushCommits, parentsByCommit);
+            commitsByRefChanges.putIfAbsent(toKey(singleRefChange), refCommits);
+            byte[] packed = new byte[refCommits.length * ObjectIdIndex.ID_LENGTH];
+            for (int i = 0; i < refCommits.length; i++) {
+                System.arraycopy(ObjectIdIndex.pack(commitIds.get(refCommits[i])), 0, packed, i * ObjectIdIndex.ID_LENGTH,
+                        ObjectIdIndex.ID_LENGTH);
+            }
+            commits.put(toKey(singleRefChange), packed);
+        }
+        return new Snapshot(getPlan(), commits);
+    }
+
+    /**
+     * @return the new commits reachable from the new tip of the ref change, in the order of the walk
+     */
+    private int[] getReachableCommits(RefChange refChange, int[] pushCommits, Map<Integer, int[]> parentsByCommit) {
+        if (refChange.getType() == RefChangeType.DELETE) {
+            return new int[0];
+        }
+        BitSet reachable = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(commitIds.add(refChange.getToHash()));
+        while (!pending.isEmpty()) {
+            int commit = pending.pop();
+            int[] parents = parentsByCommit.get(commit);
+            // Commits of existing branches were not walked
+            if (parents != null && !reachable.get(commit)) {
+                reachable.set(commit);
+                for (int parent : parents) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return Arrays.stream(pushCommits).filter(reachable::get).toArray();
+    }
+
+    /**
+     * @return estimated number of bytes of the working set held on the heap
+     */
+    synchronized long getWeight() {
+        long weight = commitIds.getHeapBytes() + contentIds.getHeapBytes() + paths.getHeapBytes() + sizes.length * 8L;
+        for (long[] files : filesByCommit) {
+            weight += files == null ? 8 : 24 + files.length * 8L;
+        }
+        for (int[] commits : commitsByRefChanges.values()) {
+            weight += 16 + commits.length * 4L;
+        }
+        for (Set<String> blobs : oversizedBlobsByRefChanges.values()) {
+            // Strings of 40 characters in a hash set
+            weight += 16 + blobs.size() * 136L;
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the commits introduced by the given ref changes.
+     *
+     * @param refChanges ref changes of this push
+     * @return indexes of the new commits in the commit id index of this context
+     */
+    synchronized int[] getCommits(Collection<RefChange> refChanges) {
+        return commitsByRefChanges.computeIfAbsent(toKey(refChanges), k -> {
+            return getTrace().time(HookTrace.Stage.REV_LIST, () -> {
+                IntStream.Builder commits = IntStream.builder();
+                changesetService.streamCommitsBetween(repository, refChanges, commitId -> commits.add(commitIds.add(commitId)));
+                return commits.build().toArray();
+            }, commits -> commits.length);
+        });
+    }
+
+    /**
+     * @param refChanges ref changes of this push
+     * @return ids of the commits introduced by the given ref changes
+     */
+    synchronized List<String> getCommitIds(Collection<RefChange> refChanges) {
+        return Arrays.stream(getCommits(refChanges)).mapToObj(commitIds::get).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the number of commits introduced by the given ref changes.
+     *
+     * @param refChanges ref changes of this push
+     * @return number of new commits
+     */
+    public synchronized int getCommitCount(Collection<RefChange> refChanges) {
+        return getCommits(refChanges).length;
+    }
+
+    /**
+     * Returns the blobs larger than the given size which are new to the repository, as found by git during its
+     * object walk. Unlike {@link #getChangedFiles}, blobs already contained in the repository are not included.
+     *
+     * @param refChanges ref changes of this push
+     * @param maxSize maximum allowed blob size in bytes
+     * @return ids of the new blobs larger than the given size
+     */
+    public synchronized Set<String> getOversizedBlobs(Collection<RefChange> refChanges, long maxSize) {
+        return oversizedBlobsByRefChanges.computeIfAbsent(toKey(refChanges) + "|" + maxSize, k -> {
+            return getTrace().time(HookTrace.Stage.REV_LIST, () -> {
+                Set<String> blobs = new HashSet<>();
+                changesetService.streamOversizedBlobs(repository, refChanges, maxSize, blobs::add);
+                return blobs;
+            }, Set::size);
+        });
+    }
+
+    /**
+     * Tells which contents of previously returned {@link ChangedFiles} are blobs new to the repository, i.e. not
+     * reachable from any branch or tag before the push. Submodules are never included.
+     *
+     * @param refChanges ref changes of this push
+     * @return content indexes of the new blobs
+     */
+    public synchronized BitSet getNewBlobs(Collection<RefChange> refChanges) {
+        return getTrace().time(HookTrace.Stage.REV_LIST, () -> {
+            BitSet newBlobs = new BitSet();
+            changesetService.streamNewObjects(repository, refChanges, objectId -> {
+                int contentIndex = contentIds.indexOf(objectId);
+                if (contentIndex >= 0 && (contentIndex >= sizes.length || sizes[contentIndex] != NOT_A_BLOB)) {
+                    newBlobs.set(contentIndex);
+                }
+            });
+            return newBlobs;
+        }, BitSet::cardinality);
+    }
+
+    /**
+     * @return true if {@link #getOversizedBlobs} can be used with the git of this node
+     */
+    public boolean supportsObjectFilter() {
+        return changesetService.supportsObjectFilter(repository);
+    }
+
+    /**
+     * Returns the distinct files added or modified by all commits introduced by the given ref changes.
+     *
+     * @param refChanges ref changes of this push
+     * @return changed files of the new commits ordered by path, deleted files are not included
+     */
+    public synchronized ChangedFiles getChangedFiles(Collection<RefChange> refChanges) {
+        int[] commits = getCommits(refChanges);
+
+        List<String> unresolved = Arrays.stream(commits)
+                .filter(commit -> getFiles(commit) == null)
+                .mapToObj(commitIds::get)
+                .collect(Collectors.toList());
+        if (!unresolved.isEmpty() && getPlan().getStrategy() == PushPlan.Strategy.STREAMING) {
+            RawChangeCollector collector = new RawChangeCollector();
+            List<String> commitsToStream = unresolved;
+            getTrace().time(HookTrace.Stage.DIFF_TREE, () -> {
+                changesetService.streamRawChanges(repository, commitsToStream, collector);
+                collector.flush();
+                return commitsToStream;
+            }, List::size);
+            // Merge commits and commits without changes are not printed by diff-tree
+            unresolved = unresolved.stream()
+                    .filter(commitId -> getFiles(commitIds.indexOf(commitId)) == null)
+                    .collect(Collectors.toList());
+        }
+        // Git runs on the hook thread, only there it sees the objects of the push which are still in quarantine
+        List<String> commitsToList = unresolved;
+        if (!unresolved.isEmpty()) {
+            getTrace().time(HookTrace.Stage.CHANGESETS, () -> {
+                changesetService.streamChangesets(repository, commitsToList, this::addChangeset);
+                return commitsToList;
+            }, List::size);
+        }
+        // Commits without a changeset must not be resolved again
+        for (int commit : commits) {
+            setFiles(commit, NO_FILES, false);
+        }
+
+        int count = 0;
+        for (int commit : commits) {
+            count += getFiles(commit).length;
+        }
+        long[] files = new long[count];
+        int offset = 0;
+        for (int commit : commits) {
+            long[] commitFiles = getFiles(commit);
+            System.arraycopy(commitFiles, 0, files, offset, commitFiles.length);
+            offset += commitFiles.length;
+        }
+        return new ChangedFiles(sortByPath(distinct(files)), paths, contentIds, this, executor);
+    }
+
+    /**
+     * Resolves the sizes of all blobs of the given files which have not been sized before. Submodules are never
+     * sized. Blobs missing in the result of the function, or in batches the function failed for, stay unsized and
+     * are asked for again by the next call.
+     *
+     * @param files files to size
+     * @param resolveFunction function to get the sizes of a set of blob ids
+     */
+    public synchronized void resolveSizes(ChangedFiles files, Function<Iterable<String>, Map<String, Long>> resolveFunction) {
+        ensureSizeCapacity(contentIds.size());
+        Set<String> unresolved = new LinkedHashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            int contentIndex = files.getContentIndex(i);
+            if (sizes[contentIndex] == UNKNOWN_SIZE) {
+                unresolved.add(contentIds.get(contentIndex));
+            }
+        }
+        for (List<String> batch : Iterables.partition(unresolved, getPlan().getSizeBatchSize())) {
+            Map<String, Long> batchSizes = getTrace().time(HookTrace.Stage.CAT_FILE, () -> resolveFunction.apply(batch), result -> batch.size());
+            for (Map.Entry<String, Long> entry : batchSizes.entrySet()) {
+                sizes[contentIds.indexOf(entry.getKey())] = entry.getValue();
+            }
+        }
+    }
+
+    /**
+     * @param files changed files previously passed to {@link #resolveSizes}
+     * @param i index of the file
+     * @return size of the blob, {@link #NOT_A_BLOB} for submodules or {@link #UNKNOWN_SIZE} if the blob was not sized
+     */
+    public synchronized long getSize(ChangedFiles files, int i) {
+        int contentIndex = files.getContentIndex(i);
+        return contentIndex < sizes.length ? sizes[contentIndex] : UNKNOWN_SIZE;
+    }
+
+    /**
+     * @param pathId id of a path of previously returned {@link ChangedFiles}
+     * @return the path
+     */
+    public synchronized String getPath(int pathId) {
+        return paths.get(pathId);
+    }
+
+    private void addChangeset(Changeset changeset) {
+        Page<Change> changes = changeset.getChanges();
+        long[] files = new long[changes.getSize()];
+        int count = 0;
+        for (Change change : changes.getValues()) {
+            if (isNotDeleteChange.test(change)) {
+                files[count++] = ChangedFiles.pack(paths.add(change.getPath().toString()),
+                        addContent(change.getContentId(), change.getNodeType() == ContentTreeNode.Type.SUBMODULE));
+            }
+        }
+        setFiles(commitIds.add(changeset.getToCommit().getId()), Arrays.copyOf(files, count), true);
+    }
+
+    /**
+     * Packs the changes streamed from diff-tree per commit, in the same way as {@link #addChangeset}.
+     */
+    private class RawChangeCollector implements RawChangeCallback {
+
+        private int commit = -1;
+        private long[] files = new long[16];
+        private int count;
+
+        @Override
+        public void onCommit(String commitId) {
+            flush();
+            commit = commitIds.add(commitId);
+        }
+
+        @Override
+        public void onChange(String path, String contentId, boolean deleted, boolean submodule) {
+            if (deleted) {
+                return;
+            }
+            if (count == files.length) {
+                files = Arrays.copyOf(files, count * 2);
+            }
+            files[count++] = ChangedFiles.pack(paths.add(path), addContent(contentId, submodule));
+        }
+
+        void flush() {
+            if (commit >= 0) {
+                setFiles(commit, Arrays.copyOf(files, count), true);
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Adds a content id to the index. Submodules point to commits, usually of other repositories, so they are
+     * known not to be blobs without asking git.
+     */
+    private int addContent(String contentId, boolean submodule) {
+        int contentIndex = contentIds.add(contentId);
+        if (submodule) {
+            ensureSizeCapacity(contentIndex + 1);
+            sizes[contentIndex] = NOT_A_BLOB;
+        }
+        return contentIndex;
+    }
+
+    private long[] getFiles(int commitIndex) {
+        return commitIndex < filesByCommit.size() ? filesByCommit.get(commitIndex) : null;
+    }
+
+    private void setFiles(int commitIndex, long[] files, boolean overwrite) {
+        while (filesByCommit.size() <= commitIndex) {
+            filesByCommit.add(null);
+        }
+        if (overwrite || filesByCommit.get(commitIndex) == null) {
+            filesByCommit.set(commitIndex, files);
+        }
+    }
+
+    private void ensureSizeCapacity(int capacity) {
+        if (sizes.length < capacity) {
+            int previous = sizes.length;
+            sizes = Arrays.copyOf(sizes, Math.max(capacity, previous * 2));
+            Arrays.fill(sizes, previous, sizes.length, UNKNOWN_SIZE);
+        }
+    }
+
+    /**
+     * Orders files by path rather than by path id, as path ids depend on the order changesets arrived in.
+     */
+    private long[] sortByPath(long[] files) {
+        // Files are ordered by path id already, so equal path ids are adjacent
+        List<Integer> pathIds = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            int pathId = (int) (files[i] >>> 32);
+            if (i == 0 || pathId != pathIds.get(pathIds.size() - 1)) {
+                pathIds.add(pathId);
+            }
+        }
+        pathIds.sort(Comparator.comparing(paths::get));
+
+        int[] rankByPathId = new int[paths.size()];
+        for (int rank = 0; rank < pathIds.size(); rank++) {
+            rankByPathId[pathIds.get(rank)] = rank;
+        }
+        for (int i = 0; i < files.length; i++) {
+            files[i] = ChangedFiles.pack(rankByPathId[(int) (files[i] >>> 32)], (int) files[i]);
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            files[i] = ChangedFiles.pack(pathIds.get((int) (files[i] >>> 32)), (int) files[i]);
+        }
+        return files;
+    }
+
+    private static long[] distinct(long[] files) {
+        if (files.length == 0) {
+            return files;
+        }
+        Arrays.sort(files);
+        int count = 1;
+        for (int i = 1; i < files.length; i++) {
+            if (files[i] != files[count - 1]) {
+                files[count++] = files[i];
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Commits of the ref changes of a push and its plan, as listed before the refs were updated.
+     */
+    public static class Snapshot {
+
+        private final PushPlan plan;
+        private final Map<String, byte[]> commitsByRefChanges;
+
+        private Snapshot(PushPlan plan, Map<String, byte[]> commitsByRefChanges) {
+            this.plan = plan;
+            this.commitsByRefChanges = commitsByRefChanges;
+        }
+    }
+
+    static String toKey(Collection<RefChange> refChanges) {
+        return refChanges.stream()
+                .map(refChange -> refChange.getRef().getId() + ":" + refChange.getFromHash() + ":"
+                        + refChange.getToHash() + ":" + refChange.getType())
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+}
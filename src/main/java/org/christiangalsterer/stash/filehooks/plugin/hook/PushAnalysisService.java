@@ -0,0 +1,13 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+
+import java.util.Collection;
+
+public interface PushAnalysisService {
+    PushAnalysisContext getContext(final Repository repository, Collection<RefChange> refChanges);
+    PushAnalysisContext restoreContext(final Repository repository, Collection<RefChange> refChanges, PushAnalysisContext.Snapshot snapshot);
+    void returnContext(PushAnalysisContext context);
+    boolean release(final Repository repository, Collection<RefChange> refChanges);
+}
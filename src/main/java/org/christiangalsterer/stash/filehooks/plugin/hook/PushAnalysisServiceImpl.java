@@ -0,0 +1,82 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out one {@link PushAnalysisContext} per push, so that all file hooks of the plugin running in the
+ * pre-receive phase of the same push share the commits and changes resolved for it.
+ *
+ * A push is identified by its repository and ref changes. Its context is released once the push was accepted,
+ * as all hooks have run by then. Contexts of rejected pushes expire after a short time. All contexts together
+ * are bounded by the estimated size of their working sets, which hooks update by returning the context after
+ * they ran.
+ */
+public class PushAnalysisServiceImpl implements PushAnalysisService {
+
+    private static final long CONTEXT_TTL_SECONDS = 60;
+
+    private final ChangesetService changesetService;
+    private final HookExecutor executor;
+    private final FileHooksConfig config;
+    private final PushPlanner planner;
+    private final Cache<String, PushAnalysisContext> contexts;
+
+    public PushAnalysisServiceImpl(ChangesetService changesetService, HookExecutor executor, FileHooksConfig config) {
+        this.changesetService = changesetService;
+        this.executor = executor;
+        this.config = config;
+        this.planner = new PushPlanner(changesetService, config);
+        // Weighed in kilobytes, so that a single working set cannot overflow the weight
+        this.contexts = CacheBuilder.newBuilder()
+                .maximumWeight(config.getWorkingSetCacheSize() / 1024)
+                .<String, PushAnalysisContext>weigher((key, context) -> (int) Math.min(Integer.MAX_VALUE, context.getWeight() / 1024))
+                .expireAfterAccess(CONTEXT_TTL_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public PushAnalysisContext getContext(final Repository repository, Collection<RefChange> refChanges) {
+        return contexts.asMap().computeIfAbsent(toKey(repository, refChanges), k -> new PushAnalysisContext(repository, refChanges,
+                changesetService, planner, executor, config.getWorkingSetSpillThreshold()));
+    }
+
+    /**
+     * Creates a context from a snapshot of a push which was accepted. The context is not shared, it lives only as
+     * long as the caller holds on to it.
+     */
+    @Override
+    public PushAnalysisContext restoreContext(final Repository repository, Collection<RefChange> refChanges,
+                                              PushAnalysisContext.Snapshot snapshot) {
+        return new PushAnalysisContext(repository, refChanges, changesetService, planner, executor,
+                config.getWorkingSetSpillThreshold(), snapshot);
+    }
+
+    /**
+     * Weighs the context again after a hook ran, so that its working set counts against the size of the cache.
+     * Contexts released or evicted in the meantime are not taken back.
+     */
+    @Override
+    public void returnContext(PushAnalysisContext context) {
+        contexts.asMap().replace(toKey(context.getRepository(), context.getRefChanges()), context, context);
+    }
+
+    /**
+     * Drops the context of a push once all its hooks have run.
+     *
+     * @return true if a hook of this plugin asked for the context of the push recently
+     */
+    @Override
+    public boolean release(final Repository repository, Collection<RefChange> refChanges) {
+        return contexts.asMap().remove(toKey(repository, refChanges)) != null;
+    }
+
+    private static String toKey(Repository repository, Collection<RefChange> refChanges) {
+        return repository.getId() + "|" + PushAnalysisContext.toKey(refChanges);
+    }
+}
@@ -0,0 +1,61 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * How the changes of a push are evaluated, as chosen by the {@link PushPlanner}.
+ */
+public class PushPlan {
+
+    public enum Strategy {
+        /**
+         * The push introduces no new commits, e.g. it only creates branches or tags on existing commits or deletes refs.
+         */
+        SKIP,
+        /**
+         * Changes are listed with the changesets API of Bitbucket.
+         */
+        CHANGESETS,
+        /**
+         * Changes are streamed from a single {@code git diff-tree} process.
+         */
+        STREAMING
+    }
+
+    private final Strategy strategy;
+    private final int commitCount;
+    private final int sizeBatchSize;
+    private final String reason;
+
+    PushPlan(Strategy strategy, int commitCount, int sizeBatchSize, String reason) {
+        this.strategy = strategy;
+        this.commitCount = commitCount;
+        this.sizeBatchSize = sizeBatchSize;
+        this.reason = reason;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return number of new commits of the push, capped at the streaming threshold for streamed pushes
+     */
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * @return maximum number of content ids sized with a single {@code cat-file} call
+     */
+    public int getSizeBatchSize() {
+        return sizeBatchSize;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return strategy + " (" + reason + ")";
+    }
+}
@@ -0,0 +1,55 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * Picks the cheapest way to evaluate a push before the hooks look at it.
+ *
+ * The size of the push is estimated with {@code rev-list --count}, which is much cheaper than listing the
+ * commits and their changes, and which stops counting at the streaming threshold. Pushes without new commits
+ * are skipped, small pushes use the changesets API and large ones stream their changes from git in a single
+ * process.
+ */
+class PushPlanner {
+
+    private static final Logger log = LoggerFactory.getLogger(PushPlanner.class);
+
+    private final ChangesetService changesetService;
+    private final FileHooksConfig config;
+
+    PushPlanner(ChangesetService changesetService, FileHooksConfig config) {
+        this.changesetService = changesetService;
+        this.config = config;
+    }
+
+    PushPlan plan(final Repository repository, Collection<RefChange> refChanges) {
+        PushPlan plan = choose(repository, refChanges);
+        log.debug("Evaluating push of {} ref changes to {} with plan {}", refChanges.size(), repository, plan);
+        return plan;
+    }
+
+    private PushPlan choose(final Repository repository, Collection<RefChange> refChanges) {
+        if (refChanges.stream().allMatch(refChange -> refChange.getType() == RefChangeType.DELETE)) {
+            return new PushPlan(PushPlan.Strategy.SKIP, 0, 0, "only ref deletions");
+        }
+
+        int streamingThreshold = config.getStreamingCommitsThreshold();
+        int commitCount = changesetService.countCommitsBetween(repository, refChanges, streamingThreshold);
+        if (commitCount == 0) {
+            return new PushPlan(PushPlan.Strategy.SKIP, 0, 0, "no new commits");
+        }
+
+        if (commitCount >= streamingThreshold) {
+            return new PushPlan(PushPlan.Strategy.STREAMING, commitCount, config.getSizeBatchSize(),
+                    "at least " + commitCount + " new commits, streaming from " + streamingThreshold);
+        }
+        return new PushPlan(PushPlan.Strategy.CHANGESETS, commitCount, Integer.MAX_VALUE,
+                commitCount + " new commits, streaming from " + streamingThreshold);
+    }
+}
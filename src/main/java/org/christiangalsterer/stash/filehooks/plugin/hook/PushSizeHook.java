@@ -0,0 +1,187 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.hook.HookResponse;
+import com.atlassian.bitbucket.hook.repository.PreReceiveRepositoryHook;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookContext;
+import com.atlassian.bitbucket.i18n.I18nService;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.setting.RepositorySettingsValidator;
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+import com.google.common.base.Strings;
+
+import javax.annotation.Nonnull;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isNotDeleteRefChange;
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.matchesBranchPattern;
+
+/**
+ * Checks the total size and number of the distinct file contents added or modified by a push in the pre-receive
+ * phase and rejects the push when it exceeds the configured budget. Only blobs new to the repository count, as content
+ * already stored, e.g. restored from an older commit, does not grow it. Submodules are not counted either.
+ *
+ * Blobs are sized in chunks through a single reader and the check stops as soon as the running total exceeds the
+ * budget. Sizes already resolved by the {@link FileSizeHook} for the same push are reused. A blob which cannot be
+ * sized rejects the push, as the budget cannot be checked without it.
+ */
+public class PushSizeHook implements PreReceiveRepositoryHook, RepositorySettingsValidator {
+
+    private static final String SETTINGS_MAX_BYTES = "max-bytes";
+    private static final String SETTINGS_MAX_FILES = "max-files";
+    private static final String SETTINGS_BRANCHES_PATTERN = "pattern-branches";
+
+    private static final int SIZE_CHUNK = 1000;
+
+    private final PushAnalysisService pushAnalysisService;
+    private final BlobSizer blobSizer;
+    private final I18nService i18n;
+    private final FileHooksConfig config;
+    private final AdmissionController admissionController;
+
+    public PushSizeHook(PushAnalysisService pushAnalysisService, BlobSizer blobSizer, I18nService i18n,
+                        FileHooksConfig config, AdmissionController admissionController) {
+        this.pushAnalysisService = pushAnalysisService;
+        this.blobSizer = blobSizer;
+        this.i18n = i18n;
+        this.config = config;
+        this.admissionController = admissionController;
+    }
+
+    @Override
+    public boolean onReceive(@Nonnull RepositoryHookContext context, @Nonnull Collection<RefChange> refChanges, @Nonnull HookResponse hookResponse) {
+        long start = System.nanoTime();
+        Repository repository = context.getRepository();
+        Settings settings = context.getSettings();
+        Long maxBytes = settings.getLong(SETTINGS_MAX_BYTES);
+        Long maxFiles = settings.getLong(SETTINGS_MAX_FILES);
+        String branchesRegex = settings.getString(SETTINGS_BRANCHES_PATTERN);
+
+        Collection<RefChange> filteredRefChanges = refChanges.stream().filter(isNotDeleteRefChange).collect(Collectors.toList());
+        if (!Strings.isNullOrEmpty(branchesRegex)) {
+            filteredRefChanges = filteredRefChanges.stream().filter(matchesBranchPattern(Pattern.compile(branchesRegex))).collect(Collectors.toList());
+        }
+
+        PushAnalysisContext pushContext = pushAnalysisService.getContext(repository, refChanges);
+        HookTrace trace = pushContext.startTrace();
+        try {
+            if (filteredRefChanges.isEmpty()) {
+                return true;
+            }
+
+            // Planning walks the new commits already, so it is admitted like the check itself
+            Optional<AdmissionController.Permit> permit = admissionController.admit(String.valueOf(repository.getId()));
+            if (!permit.isPresent()) {
+                hookResponse.err().println("Push Size Hook: " + AdmissionController.REJECTED_MESSAGE);
+                return false;
+            }
+            try (AdmissionController.Permit ignored = permit.get()) {
+                if (pushContext.getPlan().getStrategy() == PushPlan.Strategy.SKIP) {
+                    return true;
+                }
+                return checkBudget(repository, filteredRefChanges, maxBytes, maxFiles, pushContext, hookResponse);
+            }
+        } finally {
+            pushContext.endTrace();
+            pushAnalysisService.returnContext(pushContext);
+            trace.logIfSlow("PushSizeHook", start, config.getSlowLogThresholdMillis(), refChanges, pushContext.getPlanIfMade());
+        }
+    }
+
+    private boolean checkBudget(final Repository repository, Collection<RefChange> filteredRefChanges, Long maxBytes, Long maxFiles,
+                                PushAnalysisContext pushContext, HookResponse hookResponse) {
+        ChangedFiles changedFiles = pushContext.getChangedFiles(filteredRefChanges);
+        if (changedFiles.size() == 0) {
+            return true;
+        }
+        BitSet newBlobs = pushContext.getNewBlobs(filteredRefChanges);
+        changedFiles = changedFiles.filterByContentIndex(newBlobs::get);
+
+        // The same content may be added under several paths, but is stored only once
+        BitSet seen = new BitSet();
+        long files = 0;
+        for (int i = 0; i < changedFiles.size(); i++) {
+            if (!seen.get(changedFiles.getContentIndex(i))) {
+                seen.set(changedFiles.getContentIndex(i));
+                files++;
+            }
+        }
+        if (maxFiles != null && files > maxFiles) {
+            report(hookResponse.out(), String.format("Push adds %d files. At most %d files are allowed per push.", files, maxFiles));
+            return false;
+        }
+        if (maxBytes == null) {
+            return true;
+        }
+
+        seen.clear();
+        long bytes = 0;
+        BlobSizer.Reader reader = blobSizer.open(repository);
+        for (int from = 0; from < changedFiles.size(); from += SIZE_CHUNK) {
+            ChangedFiles chunk = changedFiles.slice(from, Math.min(from + SIZE_CHUNK, changedFiles.size()));
+            pushContext.resolveSizes(chunk, reader::getSizes);
+            for (int i = 0; i < chunk.size(); i++) {
+                long size = pushContext.getSize(chunk, i);
+                if (size == PushAnalysisContext.UNKNOWN_SIZE) {
+                    hookResponse.err().println(String.format("Push Size Hook: Could not determine the size of file [%s].", chunk.getPath(i)));
+                    return false;
+                }
+                if (size > 0 && !seen.get(chunk.getContentIndex(i))) {
+                    seen.set(chunk.getContentIndex(i));
+                    bytes += size;
+                }
+            }
+            if (bytes > maxBytes) {
+                report(hookResponse.out(), String.format("Push adds at least %d bytes. At most %d bytes are allowed per push.", bytes, maxBytes));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void report(PrintWriter out, String message) {
+        out.println("=== Push Size Hook ===");
+        out.println();
+        out.println(message);
+        out.println();
+        out.println("You may to consider to use Git Large File Storage in Bitbucket, see https://confluence.atlassian.com/bitbucket/git-large-file-storage-in-bitbucket-829078514.html");
+        out.println("======================");
+    }
+
+    @Override
+    public void validate(@Nonnull Settings settings, @Nonnull SettingsValidationErrors errors, @Nonnull Repository repository) {
+        boolean hasBudget = false;
+        for (String key : new String[]{SETTINGS_MAX_BYTES, SETTINGS_MAX_FILES}) {
+            String value = settings.getString(key, "");
+            if (value.isEmpty()) {
+                continue;
+            }
+            hasBudget = true;
+            try {
+                if (Long.parseLong(value) < 1) {
+                    errors.addFieldError(key, i18n.getText("pushsize-hook.error.budget", "Budget must be an integer value larger than 0"));
+                }
+            } catch (NumberFormatException e) {
+                errors.addFieldError(key, i18n.getText("pushsize-hook.error.budget", "Budget must be an integer value larger than 0"));
+            }
+        }
+        if (!hasBudget) {
+            errors.addFormError(i18n.getText("pushsize-hook.error.missing", "Either a maximum number of bytes or of files is required."));
+        }
+
+        if (!Strings.isNullOrEmpty(settings.getString(SETTINGS_BRANCHES_PATTERN))) {
+            try {
+                Pattern.compile(settings.getString(SETTINGS_BRANCHES_PATTERN));
+            } catch (PatternSyntaxException e) {
+                errors.addFieldError(SETTINGS_BRANCHES_PATTERN, i18n.getText("pushsize-hook.error.pattern", "Pattern is not a valid regular expression"));
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * Receives the changes of commits streamed from {@code git diff-tree}.
+ */
+interface RawChangeCallback {
+
+    /**
+     * Called before the changes of a commit.
+     *
+     * @param commitId id of the commit
+     */
+    void onCommit(String commitId);
+
+    /**
+     * Called for every change of the commit last passed to {@link #onCommit}.
+     *
+     * @param path path of the changed file
+     * @param contentId id of the new content, or of the old content for deletions
+     * @param deleted true if the file was deleted
+     * @param submodule true if the path is a submodule, its content id is a commit id then
+     */
+    void onChange(String path, String contentId, boolean deleted, boolean submodule);
+}
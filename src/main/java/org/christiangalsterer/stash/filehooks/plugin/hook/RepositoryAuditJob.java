@@ -0,0 +1,268 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audits the complete history of a repository for files violating an {@link AuditSetting}.
+ *
+ * The history of every branch and tag tip is walked with {@code git log --raw}, excluding the history of all tips
+ * audited before. Every file added or modified by a commit is checked, so that a file is reported under every
+ * forbidden path it was committed to, even if its content was committed before. Files are sized in batches through
+ * a single {@link BlobSizer.Reader} per tip while the walk is still running.
+ *
+ * After every batch a checkpoint is written with the number of commits of the tip audited so far, and the audit
+ * pauses to stay within the configured share of wall clock time. Git waits for its output to be read meanwhile.
+ * An interrupted audit skips the commits of the tip it audited before.
+ *
+ * Audits of the {@link AuditSetting.Scope#TIPS tips} only check the tree of every tip with a {@link TreeWalker},
+ * which skips subtrees already found clean by this or an earlier audit.
+ */
+class RepositoryAuditJob implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RepositoryAuditJob.class);
+
+    private final Repository repository;
+    private final AuditSetting setting;
+    private final GitCommandBuilderFactory commandFactory;
+    private final BlobSizer blobSizer;
+    private final TreeWalker treeWalker;
+    private final AuditStore store;
+    private final int batchSize;
+    private final int budgetPercent;
+    private final int maxViolations;
+
+    private final List<String[]> pendingFiles = new ArrayList<>();
+    private final Set<String> reported = new HashSet<>();
+    private Set<String> completedTips;
+    private List<AuditViolation> violations;
+    private boolean truncated;
+    private long workStart;
+    private volatile boolean cancelled;
+    private volatile boolean suspended;
+
+    RepositoryAuditJob(Repository repository, AuditSetting setting, GitCommandBuilderFactory commandFactory, BlobSizer blobSizer,
+                       TreeVerdictCache treeVerdictCache, AuditStore store, FileHooksConfig config) {
+        this.repository = repository;
+        this.setting = setting;
+        this.commandFactory = commandFactory;
+        this.blobSizer = blobSizer;
+        this.treeWalker = new TreeWalker(commandFactory, treeVerdictCache);
+        this.store = store;
+        this.batchSize = config.getAuditBatchSize();
+        this.budgetPercent = config.getAuditBudgetPercent();
+        this.maxViolations = config.getAuditMaxViolations();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Stops the audit without finishing it, so that it is resumed from its last checkpoint on the next start.
+     */
+    void suspend() {
+        suspended = true;
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        AuditReport report = store.load(repository.getId()).orElseThrow(() -> new IllegalStateException("Audit was not started"));
+        completedTips = new LinkedHashSet<>(report.getCompletedTips());
+        violations = new ArrayList<>(report.getViolations());
+        violations.forEach(violation -> reported.add(toKey(violation)));
+        truncated = report.isTruncated();
+
+        store.setState(repository, AuditReport.State.RUNNING);
+        try {
+            workStart = System.nanoTime();
+            for (String tip : getTips()) {
+                if (cancelled) {
+                    break;
+                }
+                if (completedTips.contains(tip)) {
+                    continue;
+                }
+                if (setting.getScope() == AuditSetting.Scope.TIPS) {
+                    auditTree(tip);
+                } else {
+                    long auditedCommits = tip.equals(report.getCurrentTip().orElse(null)) ? report.getCurrentTipCommits() : 0;
+                    auditHistory(tip, auditedCommits);
+                }
+                if (cancelled) {
+                    break;
+                }
+                completedTips.add(tip);
+                store.checkpoint(repository, completedTips, violations, truncated);
+            }
+            if (suspended) {
+                log.info("Audit of repository {} suspended after {} tips", repository, completedTips.size());
+                return;
+            }
+            store.setState(repository, cancelled ? AuditReport.State.CANCELLED : AuditReport.State.COMPLETED);
+            log.info("Audit of repository {} {} with {} violations", repository, cancelled ? "cancelled" : "completed", violations.size());
+        } catch (RuntimeException e) {
+            log.warn("Audit of repository {} failed", repository, e);
+            store.setState(repository, AuditReport.State.FAILED);
+        }
+    }
+
+    private Set<String> getTips() {
+        DistinctLinesOutputHandler handler = new DistinctLinesOutputHandler();
+        return commandFactory.builder(repository)
+                .command("for-each-ref")
+                .argument("--format=%(objectname)")
+                .argument("refs/heads/")
+                .argument("refs/tags/")
+                .build(handler)
+                .call();
+    }
+
+    /**
+     * Audits the commits of the tip not reachable from the tips audited before, skipping the given number of
+     * commits audited by an earlier, interrupted run.
+     */
+    private void auditHistory(String tip, long auditedCommits) {
+        List<String> revisions = new ArrayList<>();
+        revisions.add(tip);
+        for (String completedTip : completedTips) {
+            revisions.add("^" + completedTip);
+        }
+
+        try {
+            HistoryCollector collector = new HistoryCollector(tip, auditedCommits, blobSizer.open(repository));
+            // Prints the same raw changes as diff-tree, but walks the commits itself
+            DiffTreeHandler handler = new DiffTreeHandler(revisions, collector);
+            commandFactory.builder(repository)
+                    .command("log")
+                    .argument("--format=%H")
+                    .argument("--raw")
+                    .argument("--no-renames")
+                    .argument("--no-abbrev")
+                    .argument("--root")
+                    .argument("--skip=" + auditedCommits)
+                    .argument("--stdin")
+                    .inputHandler(handler)
+                    .build(handler)
+                    .call();
+            collector.flush();
+        } catch (RuntimeException e) {
+            // Cancelling stops reading the output of git, which fails the command
+            if (!cancelled) {
+                throw e;
+            }
+        }
+        throttle();
+    }
+
+    private void auditTree(String tip) {
+        BlobSizer.Reader reader = blobSizer.open(repository);
+        for (AuditViolation violation : treeWalker.walk(repository, tip, setting, reader::getSizes)) {
+            addViolation(violation);
+        }
+        throttle();
+    }
+
+    /**
+     * Collects the files of the commits walked and checks them batch by batch. Batches end between commits, so
+     * that a checkpoint never covers a commit only in part.
+     */
+    private class HistoryCollector implements RawChangeCallback {
+
+        private final String tip;
+        private final BlobSizer.Reader reader;
+        private long walkedCommits;
+
+        HistoryCollector(String tip, long auditedCommits, BlobSizer.Reader reader) {
+            this.tip = tip;
+            this.walkedCommits = auditedCommits;
+            this.reader = reader;
+        }
+
+        @Override
+        public void onCommit(String commitId) {
+            if (cancelled) {
+                throw new CancellationException("Audit of repository " + repository + " was cancelled");
+            }
+            if (pendingFiles.size() >= batchSize) {
+                flush();
+                store.checkpoint(repository, completedTips, tip, walkedCommits, violations, truncated);
+                throttle();
+            }
+            walkedCommits++;
+        }
+
+        @Override
+        public void onChange(String path, String contentId, boolean deleted, boolean submodule) {
+            if (!deleted && !submodule && (setting.hasSizeLimit() || setting.isForbidden(path))) {
+                pendingFiles.add(new String[]{contentId, path});
+            }
+        }
+
+        void flush() {
+            if (pendingFiles.isEmpty()) {
+                return;
+            }
+            Set<String> contentIds = new HashSet<>();
+            pendingFiles.forEach(file -> contentIds.add(file[0]));
+            Map<String, Long> sizes = reader.getSizes(contentIds);
+            for (String[] file : pendingFiles) {
+                Long size = sizes.get(file[0]);
+                long objectSize = size == null ? -1 : size;
+                if (size != null && setting.isTooLarge(size)) {
+                    addViolation(new AuditViolation(file[0], file[1], objectSize, AuditViolation.Reason.SIZE));
+                }
+                if (setting.isForbidden(file[1])) {
+                    addViolation(new AuditViolation(file[0], file[1], objectSize, AuditViolation.Reason.NAME));
+                }
+            }
+            pendingFiles.clear();
+        }
+    }
+
+    /**
+     * Adds a violation unless it was reported before: oversized content only once, no matter under how many paths
+     * it was committed, and forbidden paths once per content.
+     */
+    private void addViolation(AuditViolation violation) {
+        if (!reported.add(toKey(violation))) {
+            return;
+        }
+        if (violations.size() < maxViolations) {
+            violations.add(violation);
+        } else {
+            truncated = true;
+        }
+    }
+
+    private static String toKey(AuditViolation violation) {
+        return violation.getReason() == AuditViolation.Reason.SIZE ? violation.getContentId()
+                : violation.getContentId() + ":" + violation.getPath();
+    }
+
+    private void throttle() {
+        long workNanos = System.nanoTime() - workStart;
+        long sleepNanos = workNanos * (100 - budgetPercent) / budgetPercent;
+        try {
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            suspend();
+        }
+        workStart = System.nanoTime();
+    }
+}
@@ -0,0 +1,150 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.google.common.base.Strings;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * Starts, reports and cancels the audit of a repository through the {@link RepositoryAuditService}, e.g.
+ * {@code POST /rest/filehooks/1.0/audit/PROJECT/repository?size=5242880&pattern=\.jar$&scope=HISTORY}.
+ *
+ * Audits run in the background, starting one returns right away. All methods require the administration permission
+ * of the repository.
+ */
+@Path("audit/{projectKey}/{repositorySlug}")
+@Produces(MediaType.APPLICATION_JSON)
+public class RepositoryAuditResource {
+
+    private final RepositoryService repositoryService;
+    private final PermissionService permissionService;
+    private final RepositoryAuditService auditService;
+
+    public RepositoryAuditResource(RepositoryService repositoryService, PermissionService permissionService,
+                                   RepositoryAuditService auditService) {
+        this.repositoryService = repositoryService;
+        this.permissionService = permissionService;
+        this.auditService = auditService;
+    }
+
+    /**
+     * Starts an audit, continuing a previous history audit with the same rules where it stopped.
+     *
+     * @param size maximum allowed file size in bytes, if sizes are audited
+     * @param pattern pattern for forbidden paths, if paths are audited
+     * @param scope {@code HISTORY} to audit all files ever committed, {@code TIPS} for the files of the branch and tag tips
+     */
+    @POST
+    public Response startAudit(@PathParam("projectKey") String projectKey, @PathParam("repositorySlug") String repositorySlug,
+                               @QueryParam("size") Long size, @QueryParam("pattern") String pattern,
+                               @QueryParam("scope") @DefaultValue("HISTORY") String scope) {
+        return withRepository(projectKey, repositorySlug, repository -> {
+            if (size == null && Strings.isNullOrEmpty(pattern)) {
+                return error(Response.Status.BAD_REQUEST, "Either a maximum file size or a file name pattern is required.");
+            }
+            if (size != null && size < 1) {
+                return error(Response.Status.BAD_REQUEST, "Size must be an integer value larger than 0.");
+            }
+            if (!Strings.isNullOrEmpty(pattern)) {
+                try {
+                    Pattern.compile(pattern);
+                } catch (PatternSyntaxException e) {
+                    return error(Response.Status.BAD_REQUEST, "Pattern is not a valid regular expression.");
+                }
+            }
+            AuditSetting.Scope auditScope;
+            try {
+                auditScope = AuditSetting.Scope.valueOf(scope);
+            } catch (IllegalArgumentException e) {
+                return error(Response.Status.BAD_REQUEST, "Scope must be HISTORY or TIPS.");
+            }
+            if (auditService.getReport(repository).map(RepositoryAuditResource::isUnfinished).orElse(false)) {
+                return error(Response.Status.CONFLICT, "An audit of this repository is running already.");
+            }
+
+            auditService.startAudit(repository, new AuditSetting(size, pattern, auditScope));
+            return Response.status(Response.Status.ACCEPTED).entity(toJson(auditService.getReport(repository).get())).build();
+        });
+    }
+
+    @GET
+    public Response getReport(@PathParam("projectKey") String projectKey, @PathParam("repositorySlug") String repositorySlug) {
+        return withRepository(projectKey, repositorySlug, repository -> auditService.getReport(repository)
+                .map(report -> Response.ok(toJson(report)).build())
+                .orElseGet(() -> error(Response.Status.NOT_FOUND, "This repository has not been audited.")));
+    }
+
+    /**
+     * Cancels a running audit. Its report keeps the violations found until then.
+     */
+    @DELETE
+    public Response cancelAudit(@PathParam("projectKey") String projectKey, @PathParam("repositorySlug") String repositorySlug) {
+        return withRepository(projectKey, repositorySlug, repository -> {
+            auditService.cancelAudit(repository);
+            return Response.noContent().build();
+        });
+    }
+
+    private Response withRepository(String projectKey, String repositorySlug, Function<Repository, Response> function) {
+        Repository repository = repositoryService.getBySlug(projectKey, repositorySlug);
+        if (repository == null) {
+            return error(Response.Status.NOT_FOUND, "Repository " + projectKey + "/" + repositorySlug + " does not exist.");
+        }
+        if (!permissionService.hasRepositoryPermission(repository, Permission.REPO_ADMIN)) {
+            return error(Response.Status.FORBIDDEN, "You are not permitted to audit this repository.");
+        }
+        return function.apply(repository);
+    }
+
+    private static boolean isUnfinished(AuditReport report) {
+        return report.getState() == AuditReport.State.QUEUED || report.getState() == AuditReport.State.RUNNING;
+    }
+
+    static Map<String, Object> toJson(AuditReport report) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("state", report.getState().name());
+        json.put("completedTips", report.getCompletedTips().size());
+        Optional<String> currentTip = report.getCurrentTip();
+        if (currentTip.isPresent()) {
+            json.put("currentTip", currentTip.get());
+            json.put("currentTipCommits", report.getCurrentTipCommits());
+        }
+        json.put("truncated", report.isTruncated());
+        json.put("totalOversizedBytes", report.getTotalOversizedBytes());
+        List<Map<String, Object>> violations = report.getViolations().stream().map(violation -> {
+            Map<String, Object> jsonViolation = new LinkedHashMap<>();
+            jsonViolation.put("path", violation.getPath());
+            jsonViolation.put("contentId", violation.getContentId());
+            jsonViolation.put("size", violation.getSize());
+            jsonViolation.put("reason", violation.getReason().name());
+            return jsonViolation;
+        }).collect(Collectors.toList());
+        json.put("violations", violations);
+        return json;
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(Collections.singletonMap("message", message)).build();
+    }
+}
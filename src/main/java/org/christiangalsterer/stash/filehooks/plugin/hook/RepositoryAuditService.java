@@ -0,0 +1,11 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+import java.util.Optional;
+
+public interface RepositoryAuditService {
+    void startAudit(final Repository repository, AuditSetting setting);
+    void cancelAudit(final Repository repository);
+    Optional<AuditReport> getReport(final Repository repository);
+}
@@ -0,0 +1,119 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs {@link RepositoryAuditJob}s on a small, dedicated pool of background threads and resumes audits which
+ * were interrupted by a restart.
+ *
+ * Every node of a cluster resumes the audits it finds unfinished, so a job only runs while it holds the cluster
+ * lock of its repository. Nodes which do not get the lock leave the audit to the node holding it.
+ */
+public class RepositoryAuditServiceImpl implements RepositoryAuditService, LifecycleAware {
+
+    private static final Logger log = LoggerFactory.getLogger(RepositoryAuditServiceImpl.class);
+    private static final String LOCK_PREFIX = "org.christiangalsterer.stash-filehooks-plugin.audit.";
+
+    private final GitCommandBuilderFactory commandFactory;
+    private final BlobSizer blobSizer;
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+    private final ClusterLockService clusterLockService;
+    private final TreeVerdictCache treeVerdictCache;
+    private final FileHooksConfig config;
+    private final AuditStore store;
+    private final ExecutorService executor;
+    private final Map<Integer, RepositoryAuditJob> jobs = new ConcurrentHashMap<>();
+
+    public RepositoryAuditServiceImpl(GitCommandBuilderFactory commandFactory, BlobSizer blobSizer, PluginSettingsFactory pluginSettingsFactory,
+                                      RepositoryService repositoryService, SecurityService securityService,
+                                      ClusterLockService clusterLockService, TreeVerdictCache treeVerdictCache,
+                                      FileHooksConfig config) {
+        this.commandFactory = commandFactory;
+        this.blobSizer = blobSizer;
+        this.clusterLockService = clusterLockService;
+        this.treeVerdictCache = treeVerdictCache;
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+        this.config = config;
+        this.store = new AuditStore(pluginSettingsFactory);
+        this.executor = Executors.newFixedThreadPool(config.getAuditThreads(),
+                new ThreadFactoryBuilder().setNameFormat("filehooks-audit-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public synchronized void startAudit(final Repository repository, AuditSetting setting) {
+        if (jobs.containsKey(repository.getId())) {
+            return;
+        }
+        store.start(repository, setting);
+        submit(repository, setting);
+    }
+
+    @Override
+    public void cancelAudit(final Repository repository) {
+        RepositoryAuditJob job = jobs.get(repository.getId());
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    @Override
+    public Optional<AuditReport> getReport(final Repository repository) {
+        return store.load(repository.getId());
+    }
+
+    @Override
+    public synchronized void onStart() {
+        for (Integer repositoryId : store.getUnfinished()) {
+            Repository repository = securityService.withPermission(Permission.SYS_ADMIN, "Resuming file hooks audit")
+                    .call(() -> repositoryService.getById(repositoryId));
+            Optional<AuditSetting> setting = store.loadSetting(repositoryId);
+            if (repository != null && setting.isPresent() && !jobs.containsKey(repositoryId)) {
+                submit(repository, setting.get());
+            }
+        }
+    }
+
+    @Override
+    public void onStop() {
+        jobs.values().forEach(RepositoryAuditJob::suspend);
+        executor.shutdownNow();
+    }
+
+    private void submit(Repository repository, AuditSetting setting) {
+        RepositoryAuditJob job = new RepositoryAuditJob(repository, setting, commandFactory, blobSizer, treeVerdictCache, store, config);
+        jobs.put(repository.getId(), job);
+        executor.execute(() -> {
+            ClusterLock lock = clusterLockService.getLockForName(LOCK_PREFIX + repository.getId());
+            if (!lock.tryLock()) {
+                log.info("Audit of repository {} is running on another node", repository);
+                jobs.remove(repository.getId());
+                return;
+            }
+            try {
+                job.run();
+            } finally {
+                lock.unlock();
+                jobs.remove(repository.getId());
+            }
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.io.LineReader;
+import com.atlassian.bitbucket.io.LineReaderOutputHandler;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Feeds revisions to {@code git rev-list --stdin} and streams every line printed to a consumer while the walk
+ * is still running.
+ *
+ * Passing revisions on stdin rather than as arguments keeps the command line short no matter how many refs are
+ * included or excluded.
+ */
+public class RevListHandler extends LineReaderOutputHandler implements CommandInputHandler, CommandOutputHandler<Void> {
+
+    private final Iterable<String> revisions;
+    private final Consumer<String> lineConsumer;
+
+    /**
+     * @param revisions revisions to walk, excluded ones prefixed with {@code ^}
+     * @param lineConsumer receives every line printed
+     */
+    RevListHandler(Iterable<String> revisions, Consumer<String> lineConsumer) {
+        super(StandardCharsets.UTF_8);
+        this.revisions = revisions;
+        this.lineConsumer = lineConsumer;
+    }
+
+    @Override
+    public Void getOutput() {
+        return null;
+    }
+
+    @Override
+    protected void processReader(LineReader reader) throws IOException {
+        String line;
+        while ((line = resetWatchdogAndReadLine(reader)) != null) {
+            lineConsumer.accept(line);
+        }
+    }
+
+    @Override
+    public void process(OutputStream input) {
+        try {
+            for (String revision : revisions) {
+                input.write(revision.getBytes(StandardCharsets.UTF_8.name()));
+                input.write("\n".getBytes(StandardCharsets.UTF_8.name()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        IOUtils.closeQuietly(input);
+    }
+}
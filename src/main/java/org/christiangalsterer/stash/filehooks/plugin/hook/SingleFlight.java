@@ -0,0 +1,87 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent identical computations.
+ *
+ * While a computation for a key is running, callers asking for the same key wait for it and receive its result
+ * (or its exception) instead of starting their own. Results are not cached beyond the running computation, and
+ * as they are shared between callers they must not be modified.
+ *
+ * @param <K> type of keys identifying a computation
+ * @param <V> type of results
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the computation for the key, or joins the one already running for it.
+     *
+     * @param key key identifying the computation
+     * @param computation computation to run if none is running for the key
+     * @return result of the computation
+     */
+    V execute(K key, Supplier<V> computation) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            return join(running);
+        }
+
+        try {
+            V value = computation.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return number of computations currently running
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Builds a compact key for a potentially large set of values, e.g. commit or content ids.
+     *
+     * @param values values in a stable order
+     * @return hex encoded hash of the values
+     */
+    static String fingerprint(Iterable<String> values) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String value : values) {
+            hasher.putString(value, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static <V> V join(CompletableFuture<V> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a single stage of a hook check, see {@link HookTrace.Stage}.
+ */
+@Name("org.christiangalsterer.filehooks.Stage")
+@Label("File Hooks Stage")
+@Category({"Bitbucket", "File Hooks"})
+@Description("A stage of checking a push or pull request")
+class StageEvent extends jdk.jfr.Event {
+
+    @Label("Repository")
+    String repository;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Count")
+    @Description("Number of items handled, e.g. commits, changes or objects")
+    long count;
+}
@@ -0,0 +1,21 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+/**
+ * Rules files of a tree are checked against by a {@link TreeWalker}.
+ */
+interface TreeRules {
+
+    /**
+     * @return fingerprint identifying the rules, equal for rules which yield the same verdicts
+     */
+    String getFingerprint();
+
+    /**
+     * @return true if the size of the file at the path is limited, so that its blob has to be sized
+     */
+    boolean hasSizeLimit(String path);
+
+    boolean isTooLarge(String path, long objectSize);
+
+    boolean isForbidden(String path);
+}
@@ -0,0 +1,48 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers which trees have been found free of violations under which rules.
+ *
+ * Trees are content-addressed, so a tree found clean stays clean in every commit containing it at the same path.
+ * The path is part of the key because path rules look at the full path of a file, not only at its name.
+ * Only clean verdicts are kept: a tree with violations has to be walked again to report them.
+ */
+public class TreeVerdictCache {
+
+    private final Cache<String, Boolean> cleanTrees;
+
+    public TreeVerdictCache(FileHooksConfig config) {
+        this(config.getTreeCacheSize());
+    }
+
+    TreeVerdictCache(long maximumSize) {
+        this.cleanTrees = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * @param treeId id of the tree
+     * @param path path of the tree, empty for the root tree or ending with {@code /}
+     * @param rules rules the tree is checked against
+     * @return true if the tree was found clean before
+     */
+    boolean isClean(String treeId, String path, TreeRules rules) {
+        return cleanTrees.getIfPresent(toKey(treeId, path, rules)) != null;
+    }
+
+    void markClean(String treeId, String path, TreeRules rules) {
+        cleanTrees.put(toKey(treeId, path, rules), Boolean.TRUE);
+    }
+
+    long size() {
+        return cleanTrees.size();
+    }
+
+    private static String toKey(String treeId, String path, TreeRules rules) {
+        return rules.getFingerprint() + ":" + treeId + ":" + path;
+    }
+}
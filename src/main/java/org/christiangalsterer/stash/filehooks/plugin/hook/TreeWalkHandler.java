@@ -0,0 +1,183 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.BaseOutputHandler;
+import com.atlassian.utils.process.IOUtils;
+import com.atlassian.utils.process.ProcessException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Walks one or more trees breadth first through a single {@code git cat-file --batch} process.
+ *
+ * Trees are requested on stdin one by one as their parents are read, so the walk can skip subtrees: the
+ * visitor decides for every subtree whether it is read at all. The walk ends once every requested tree has
+ * been read. A tree which cannot be read fails the walk, so that none of its parents is taken as checked.
+ */
+class TreeWalkHandler extends BaseOutputHandler implements CommandInputHandler, CommandOutputHandler<Void> {
+
+    // Ends the requests, revisions are never empty
+    private static final String END = "";
+
+    /**
+     * Receives the entries of the trees read.
+     */
+    interface Visitor {
+
+        /**
+         * Called when a tree was read, before its entries.
+         *
+         * @param treeId id of the tree
+         * @param path path of the tree, empty for the root tree or ending with {@code /}
+         * @return true to visit the entries of the tree
+         */
+        boolean onTree(String treeId, String path);
+
+        /**
+         * @param path path of the subtree, ending with {@code /}
+         * @return true to read the subtree
+         */
+        boolean onSubtree(String treeId, String path);
+
+        void onBlob(String blobId, String path);
+    }
+
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+    private final Deque<String> pendingPaths = new ArrayDeque<>();
+    private final Visitor visitor;
+
+    /**
+     * @param revision revision of the tree to walk, e.g. {@code <commit>^{tree}}
+     */
+    TreeWalkHandler(String revision, Visitor visitor) {
+        this(Collections.singletonList(revision), visitor);
+    }
+
+    /**
+     * @param revisions revisions of the trees to walk, one after the other
+     */
+    TreeWalkHandler(List<String> revisions, Visitor visitor) {
+        this.visitor = visitor;
+        revisions.forEach(revision -> request(revision, ""));
+    }
+
+    @Override
+    public Void getOutput() {
+        return null;
+    }
+
+    @Override
+    public void process(OutputStream input) {
+        try {
+            String request;
+            while (!(request = requests.take()).isEmpty()) {
+                input.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+                input.flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    @Override
+    public void process(InputStream output) throws ProcessException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(output));
+        try {
+            while (!pendingPaths.isEmpty()) {
+                String path = pendingPaths.poll();
+                // <id> <type> <size>, or <revision> missing or ambiguous
+                String line = readLine(in);
+                String[] header = line.split(" ");
+                resetWatchdog();
+                if (header.length != 3 || !"tree".equals(header[1])) {
+                    throw new IOException("Could not read the tree at '" + path + "': " + line);
+                }
+                byte[] content = new byte[Integer.parseInt(header[2])];
+                in.readFully(content);
+                in.readByte();
+                if (visitor.onTree(header[0], path)) {
+                    readEntries(content, path);
+                }
+            }
+        } catch (IOException e) {
+            throw new ProcessException(e);
+        } finally {
+            requests.add(END);
+        }
+    }
+
+    private void readEntries(byte[] tree, String path) {
+        // <mode> <name>\0<20 byte id>
+        int pos = 0;
+        while (pos < tree.length) {
+            int space = indexOf(tree, (byte) ' ', pos);
+            int nul = indexOf(tree, (byte) 0, space);
+            String mode = new String(tree, pos, space - pos, StandardCharsets.US_ASCII);
+            String name = new String(tree, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+            String id = toHex(tree, nul + 1);
+            pos = nul + 21;
+
+            if (mode.equals("40000")) {
+                String subtreePath = path + name + "/";
+                if (visitor.onSubtree(id, subtreePath)) {
+                    request(id, subtreePath);
+                }
+            } else if (!mode.equals("160000")) {
+                // Submodules are commits of other repositories
+                visitor.onBlob(id, path + name);
+            }
+        }
+    }
+
+    private void request(String revision, String path) {
+        pendingPaths.add(path);
+        requests.add(revision);
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Unexpected end of cat-file output");
+            }
+            line.write(c);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid tree entry");
+    }
+
+    private static String toHex(byte[] bytes, int offset) {
+        StringBuilder hex = new StringBuilder(40);
+        for (int i = offset; i < offset + 20; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 15, 16)).append(Character.forDigit(bytes[i] & 15, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.Predicates.isAddRefChange;
+
+/**
+ * Checks all files of a tree against a set of rules, skipping subtrees already found clean under the same rules.
+ *
+ * Unchanged subtrees are shared between commits, so checking the tree of a commit after one of its ancestors
+ * only reads the trees which changed in between. Trees without violations are remembered in the
+ * {@link TreeVerdictCache} once all their files have been checked.
+ */
+class TreeWalker {
+
+    private final GitCommandBuilderFactory commandFactory;
+    private final TreeVerdictCache cache;
+
+    TreeWalker(GitCommandBuilderFactory commandFactory, TreeVerdictCache cache) {
+        this.commandFactory = commandFactory;
+        this.cache = cache;
+    }
+
+    /**
+     * @param repository repository of the tree
+     * @param commitish commit or tag whose tree is checked
+     * @param rules rules to check against
+     * @param sizeFunction function to get the sizes of a set of blob ids
+     * @return violations found in the tree, in the order of the walk
+     */
+    List<AuditViolation> walk(final Repository repository, String commitish, TreeRules rules,
+                              Function<Iterable<String>, Map<String, Long>> sizeFunction) {
+        return walk(repository, Collections.singletonList(commitish), rules, sizeFunction);
+    }
+
+    /**
+     * Checks the trees of several commits at once, e.g. of all new commits of a push. Subtrees shared by the
+     * commits are read only once.
+     *
+     * @param repository repository of the trees
+     * @param commitishes commits or tags whose trees are checked
+     * @param rules rules to check against
+     * @param sizeFunction function to get the sizes of a set of blob ids
+     * @return violations found in the trees, in the order of the walk
+     */
+    List<AuditViolation> walk(final Repository repository, List<String> commitishes, TreeRules rules,
+                              Function<Iterable<String>, Map<String, Long>> sizeFunction) {
+        // Trees are keyed by id and path, a tree shared by several of the trees walked is read only once
+        List<String[]> trees = new ArrayList<>();
+        List<String[]> blobs = new ArrayList<>();
+        Map<String, Set<String>> parents = new HashMap<>();
+        String[] current = new String[1];
+        List<String> revisions = commitishes.stream().map(commitish -> commitish + "^{tree}").collect(Collectors.toList());
+        TreeWalkHandler handler = new TreeWalkHandler(revisions, new TreeWalkHandler.Visitor() {
+            @Override
+            public boolean onTree(String treeId, String path) {
+                String key = toKey(treeId, path);
+                if (path.isEmpty() && (cache.isClean(treeId, path, rules) || parents.containsKey(key))) {
+                    return false;
+                }
+                parents.computeIfAbsent(key, k -> new HashSet<>());
+                trees.add(new String[]{treeId, path});
+                current[0] = key;
+                return true;
+            }
+
+            @Override
+            public boolean onSubtree(String treeId, String path) {
+                if (cache.isClean(treeId, path, rules)) {
+                    return false;
+                }
+                String key = toKey(treeId, path);
+                boolean read = !parents.containsKey(key);
+                parents.computeIfAbsent(key, k -> new HashSet<>()).add(current[0]);
+                return read;
+            }
+
+            @Override
+            public void onBlob(String blobId, String path) {
+                if (rules.hasSizeLimit(path) || rules.isForbidden(path)) {
+                    blobs.add(new String[]{blobId, path, current[0]});
+                }
+            }
+        });
+        commandFactory.builder(repository)
+                .command("cat-file")
+                .argument("--batch")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
+
+        Set<String> blobIds = new HashSet<>();
+        blobs.forEach(blob -> blobIds.add(blob[0]));
+        Map<String, Long> sizes = blobIds.isEmpty() ? new HashMap<>() : sizeFunction.apply(blobIds);
+
+        List<AuditViolation> violations = new ArrayList<>();
+        Set<String> dirtyTrees = new HashSet<>();
+        for (String[] blob : blobs) {
+            Long size = sizes.get(blob[0]);
+            long objectSize = size == null ? -1 : size;
+            boolean tooLarge = size != null && rules.isTooLarge(blob[1], size);
+            boolean forbidden = rules.isForbidden(blob[1]);
+            if (tooLarge) {
+                violations.add(new AuditViolation(blob[0], blob[1], objectSize, AuditViolation.Reason.SIZE));
+            }
+            if (forbidden) {
+                violations.add(new AuditViolation(blob[0], blob[1], objectSize, AuditViolation.Reason.NAME));
+            }
+            // A blob which could not be sized cannot be proven clean
+            if (tooLarge || forbidden || (size == null && rules.hasSizeLimit(blob[1]))) {
+                addWithParents(blob[2], parents, dirtyTrees);
+            }
+        }
+
+        for (String[] tree : trees) {
+            if (!dirtyTrees.contains(toKey(tree[0], tree[1]))) {
+                cache.markClean(tree[0], tree[1], rules);
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Tells whether branches created by a push are free of violations by walking the trees of their new commits,
+     * which skips all subtrees found clean before, e.g. in the branch they were created from. Every file changed by
+     * a commit is part of its tree, so the changes of the commits need not be checked if all trees are clean.
+     * Otherwise they have to, as violations found in the trees may predate the push.
+     *
+     * @param refChanges ref changes of the push to check
+     * @param pushContext context of the push
+     * @param rules rules to check against
+     * @param sizeFunction function to get the sizes of a set of blob ids
+     * @return true if all ref changes create branches and the trees of their new commits are clean
+     */
+    boolean isCleanBranchCreation(Collection<RefChange> refChanges, PushAnalysisContext pushContext, TreeRules rules,
+                                  Function<Iterable<String>, Map<String, Long>> sizeFunction) {
+        if (refChanges.isEmpty() || !refChanges.stream().allMatch(isAddRefChange)) {
+            return false;
+        }
+        List<String> commitIds = pushContext.getCommitIds(refChanges);
+        return !commitIds.isEmpty() && pushContext.getTrace().time(HookTrace.Stage.TREES,
+                () -> walk(pushContext.getRepository(), commitIds, rules, sizeFunction), List::size).isEmpty();
+    }
+
+    /**
+     * Adds the tree and all trees containing it.
+     */
+    private static void addWithParents(String tree, Map<String, Set<String>> parents, Set<String> trees) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(tree);
+        while (!pending.isEmpty()) {
+            String next = pending.poll();
+            if (trees.add(next)) {
+                pending.addAll(parents.get(next));
+            }
+        }
+    }
+
+    private static String toKey(String treeId, String path) {
+        return treeId + ":" + path;
+    }
+}
@@ -0,0 +1,145 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports violations to the git client without flooding it.
+ *
+ * Detail lines are written as soon as violations are reported, up to a configured limit. All violations are also
+ * counted by directory and file extension, and if the limit was hit the largest groups are printed with their
+ * counts and total sizes when the report is finished.
+ */
+class ViolationReporter {
+
+    private final PrintWriter out;
+    private final List<String> header;
+    private final List<String> footer;
+    private final int maxDetailLines;
+    private final int maxGroups;
+    private final Map<String, long[]> groups = new HashMap<>();
+    private int violations;
+    private boolean sized;
+
+    /**
+     * @param out writer to report to
+     * @param header lines written before the first violation
+     * @param footer lines written after the last violation
+     * @param maxDetailLines maximum number of violations written in detail
+     * @param maxGroups maximum number of groups written in the summary
+     */
+    ViolationReporter(PrintWriter out, List<String> header, List<String> footer, int maxDetailLines, int maxGroups) {
+        this.out = out;
+        this.header = header;
+        this.footer = footer;
+        this.maxDetailLines = maxDetailLines;
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @param path path of the violating file
+     * @param size size of the violating file, or a negative value if not known
+     * @param detail detail line describing the violation
+     */
+    void report(String path, long size, String detail) {
+        if (violations == 0) {
+            header.forEach(out::println);
+        }
+        if (violations < maxDetailLines) {
+            out.println(detail);
+        }
+        violations++;
+
+        long[] group = groups.computeIfAbsent(getGroup(path), key -> new long[2]);
+        group[0]++;
+        if (size >= 0) {
+            group[1] += size;
+            sized = true;
+        }
+    }
+
+    boolean hasViolations() {
+        return violations > 0;
+    }
+
+    void finish() {
+        if (violations == 0) {
+            return;
+        }
+        if (violations > maxDetailLines) {
+            out.println(String.format("... and %d more violations not shown.", violations - maxDetailLines));
+            out.println("");
+            out.println("Violations by directory and file type:");
+
+            List<Map.Entry<String, long[]>> sortedGroups = sortGroups(groups);
+            for (Map.Entry<String, long[]> group : sortedGroups.subList(0, Math.min(maxGroups, sortedGroups.size()))) {
+                out.println(String.format("  %s: %d files", group.getKey(), group.getValue()[0])
+                        + (sized ? String.format(", %d bytes", group.getValue()[1]) : ""));
+            }
+            if (sortedGroups.size() > maxGroups) {
+                out.println(String.format("  ... and %d more groups", sortedGroups.size() - maxGroups));
+            }
+        }
+        footer.forEach(out::println);
+        out.flush();
+    }
+
+    /**
+     * Joins paths to a single message of bounded length, e.g. for a merge check veto.
+     *
+     * @param paths violating paths
+     * @param maxPaths maximum number of paths listed
+     * @return comma separated paths, followed by a count and the largest groups of the paths not listed
+     */
+    static String summarize(Collection<String> paths, int maxPaths) {
+        final StringBuilder sb = new StringBuilder();
+        final Iterator<String> iter = paths.iterator();
+        final Map<String, long[]> remaining = new HashMap<>();
+        int count = 0;
+        while (iter.hasNext()) {
+            String path = iter.next();
+            if (count < maxPaths) {
+                if (count > 0) {
+                    sb.append(", ");
+                }
+                sb.append(path);
+            } else {
+                remaining.computeIfAbsent(getGroup(path), key -> new long[2])[0]++;
+            }
+            count++;
+        }
+        if (count > maxPaths) {
+            sb.append(String.format(" and %d more (", count - maxPaths));
+            List<Map.Entry<String, long[]>> sortedGroups = sortGroups(remaining);
+            for (int i = 0; i < Math.min(3, sortedGroups.size()); i++) {
+                sb.append(i > 0 ? ", " : "").append(sortedGroups.get(i).getValue()[0]).append(" in ").append(sortedGroups.get(i).getKey());
+            }
+            sb.append(sortedGroups.size() > 3 ? ", ...)" : ")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return directory and extension of a path, e.g. {@code src/main/resources/*.png}
+     */
+    static String getGroup(String path) {
+        int slash = path.lastIndexOf('/');
+        String directory = slash < 0 ? "" : path.substring(0, slash + 1);
+        String name = path.substring(slash + 1);
+        int dot = name.lastIndexOf('.');
+        return directory + (dot > 0 ? "*" + name.substring(dot) : "*");
+    }
+
+    private static List<Map.Entry<String, long[]>> sortGroups(Map<String, long[]> groups) {
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(groups.entrySet());
+        sorted.sort(Comparator.<Map.Entry<String, long[]>>comparingLong(group -> -group.getValue()[0])
+                .thenComparing(Map.Entry::getKey));
+        return sorted;
+    }
+}
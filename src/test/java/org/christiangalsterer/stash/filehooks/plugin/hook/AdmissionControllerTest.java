@@ -0,0 +1,108 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void admitsUpToPermits() throws Exception {
+        AdmissionController controller = new AdmissionController(2, AdmissionController.Policy.REJECT, 0, 10);
+
+        Optional<AdmissionController.Permit> first = controller.admit("a");
+        Optional<AdmissionController.Permit> second = controller.admit("a");
+        Optional<AdmissionController.Permit> third = controller.admit("a");
+
+        assertTrue(first.isPresent());
+        assertTrue(second.isPresent());
+        assertFalse(third.isPresent());
+        assertThat(controller.getRunning(), is(2));
+        assertThat(controller.getRejectedCount(), is(1L));
+
+        first.get().close();
+        first.get().close();
+        assertThat(controller.getRunning(), is(1));
+        assertTrue(controller.admit("a").isPresent());
+    }
+
+    @Test
+    public void rejectsAfterMaximumWait() throws Exception {
+        AdmissionController controller = new AdmissionController(1, AdmissionController.Policy.WAIT, 50, 10);
+        controller.admit("a");
+
+        assertFalse(controller.admit("b").isPresent());
+        assertThat(controller.getQueued(), is(0));
+        assertThat(controller.getRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void failsWithoutRejectingWhenInterrupted() throws Exception {
+        AdmissionController controller = new AdmissionController(1, AdmissionController.Policy.WAIT, 10000, 10);
+        AdmissionController.Permit running = controller.admit("a").get();
+
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread thread = new Thread(() -> {
+            try {
+                controller.admit("b");
+            } catch (IllegalStateException e) {
+                failures.add(e);
+            }
+        });
+        thread.start();
+        while (controller.getQueued() == 0) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        thread.interrupt();
+        thread.join();
+
+        assertThat(failures.size(), is(1));
+        assertThat(controller.getQueued(), is(0));
+        assertThat(controller.getRejectedCount(), is(0L));
+        running.close();
+        assertThat(controller.getRunning(), is(0));
+    }
+
+    @Test
+    public void servesQueuedKeysInTurns() throws Exception {
+        AdmissionController controller = new AdmissionController(1, AdmissionController.Policy.WAIT, 10000, 10);
+        AdmissionController.Permit running = controller.admit("busy").get();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        // Three pushes to the busy repository queue up before a single push to another one
+        for (String key : new String[]{"busy", "busy", "busy", "other"}) {
+            CountDownLatch queued = new CountDownLatch(1);
+            Thread thread = new Thread(() -> {
+                queued.countDown();
+                try (AdmissionController.Permit ignored = controller.admit(key).get()) {
+                    order.add(key);
+                }
+            });
+            int before = controller.getQueued();
+            thread.start();
+            queued.await();
+            while (controller.getQueued() == before) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            threads.add(thread);
+        }
+
+        running.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(order.subList(0, 2), is(Arrays.asList("busy", "other")));
+        assertThat(controller.getAdmittedCount(), is(5L));
+    }
+}
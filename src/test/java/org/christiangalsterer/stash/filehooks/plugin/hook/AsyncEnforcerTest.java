@@ -0,0 +1,317 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncEnforcerTest {
+
+    private static final String HOOK = "filesize-hook";
+    private static final String REF = "refs/heads/feature";
+
+    private ChangesetService changesetService;
+    private FlagStore store;
+    private AsyncEnforcer enforcer;
+    private Repository repository;
+
+    @Before
+    public void setUp() {
+        changesetService = mock(ChangesetService.class);
+        PluginSettingsFactory factory = mock(PluginSettingsFactory.class);
+        when(factory.createGlobalSettings()).thenReturn(new MapPluginSettings());
+        store = new FlagStore(factory);
+        enforcer = new AsyncEnforcer(changesetService, store, securityService(), mock(EventPublisher.class), 1, 1);
+        repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+    }
+
+    @After
+    public void tearDown() {
+        enforcer.onStop();
+    }
+
+    @Test
+    public void violatingPushIsFlaggedWithItsReport() {
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "a", "b"), fails("too large"), stillViolating(true));
+
+        FlagStore.Flag flag = store.get(repository, HOOK, REF).get();
+        assertThat(flag.getCommitId(), is("b"));
+        assertThat(flag.getReport().trim(), is("too large"));
+        assertThat(enforcer.getViolationCount(), is(1L));
+    }
+
+    @Test
+    public void flagStaysOnTheFirstViolatingCommitWhileTheRefContainsIt() {
+        store.flag(repository, new FlagStore.Flag(HOOK, REF, "b", "first"));
+        when(changesetService.isAncestor(repository, "b", "c")).thenReturn(true);
+
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "b", "c"), fails("second"), stillViolating(true));
+
+        FlagStore.Flag flag = store.get(repository, HOOK, REF).get();
+        assertThat(flag.getCommitId(), is("b"));
+        assertThat(flag.getReport().trim(), is("second"));
+    }
+
+    @Test
+    public void flagMovesToTheNewTipOfARewrittenRef() {
+        store.flag(repository, new FlagStore.Flag(HOOK, REF, "b", "first"));
+        when(changesetService.isAncestor(repository, "b", "x")).thenReturn(false);
+
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "b", "x"), fails("rewritten"), stillViolating(true));
+
+        assertThat(store.get(repository, HOOK, REF).get().getCommitId(), is("x"));
+    }
+
+    @Test
+    public void flagIsKeptWhenAPassingPushStillViolates() {
+        store.flag(repository, new FlagStore.Flag(HOOK, REF, "b", "first"));
+
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "b", "c"), passes(), stillViolating(true));
+
+        assertThat(store.get(repository, HOOK, REF).get().getReport(), is("first"));
+    }
+
+    @Test
+    public void flagIsClearedWhenAPassingPushNoLongerViolates() {
+        store.flag(repository, new FlagStore.Flag(HOOK, REF, "b", "first"));
+
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "b", "c"), passes(), stillViolating(false));
+
+        assertFalse(store.get(repository, HOOK, REF).isPresent());
+    }
+
+    @Test
+    public void flagIsClearedWhenTheRefIsDeleted() {
+        store.flag(repository, new FlagStore.Flag(HOOK, REF, "b", "first"));
+
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.DELETE, "b", "0000000000000000000000000000000000000000"),
+                fails("never checked"), stillViolating(true));
+
+        assertFalse(store.get(repository, HOOK, REF).isPresent());
+    }
+
+    @Test
+    public void passingPushOfAnUnflaggedRefIsNotFlagged() {
+        enforcer.verify(repository, HOOK, refChange(RefChangeType.UPDATE, "a", "b"), passes(), stillViolating(true));
+
+        assertFalse(store.get(repository, HOOK, REF).isPresent());
+    }
+
+    @Test
+    public void preparedVerificationRunsOnlyOnceThePushWasAccepted() throws Exception {
+        List<RefChange> refChanges = Collections.singletonList(refChange(RefChangeType.UPDATE, "a", "b"));
+        CountDownLatch verified = new CountDownLatch(1);
+
+        assertTrue(enforcer.prepare(repository, HOOK, refChanges, (refChange, out) -> {
+            verified.countDown();
+            return false;
+        }, stillViolating(true)));
+        assertFalse(verified.await(100, TimeUnit.MILLISECONDS));
+
+        enforcer.accepted(repository, refChanges);
+
+        assertTrue(verified.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void verificationOfARejectedPushIsNeverRun() throws Exception {
+        List<RefChange> refChanges = Collections.singletonList(refChange(RefChangeType.UPDATE, "a", "b"));
+        CountDownLatch verified = new CountDownLatch(1);
+        enforcer.prepare(repository, HOOK, refChanges, (refChange, out) -> {
+            verified.countDown();
+            return false;
+        }, stillViolating(true));
+
+        // Another push of the same ref, the first one was rejected by another hook
+        enforcer.accepted(repository, Collections.singletonList(refChange(RefChangeType.UPDATE, "a", "c")));
+
+        assertFalse(verified.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(store.get(repository, HOOK, REF).isPresent());
+    }
+
+    @Test
+    public void pushIsCheckedRightAwayWhenTheQueueIsFull() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<RefChange> blocking = Collections.singletonList(refChange(RefChangeType.UPDATE, "a", "b"));
+        List<RefChange> queued = Collections.singletonList(refChange(RefChangeType.UPDATE, "b", "c"));
+        enforcer.prepare(repository, HOOK, blocking, (refChange, out) -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, stillViolating(true));
+        enforcer.accepted(repository, blocking);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        enforcer.prepare(repository, HOOK, queued, passes(), stillViolating(true));
+        enforcer.accepted(repository, queued);
+
+        assertFalse(enforcer.prepare(repository, HOOK, Collections.singletonList(refChange(RefChangeType.UPDATE, "c", "d")),
+                passes(), stillViolating(true)));
+        assertThat(enforcer.getFallbackCount(), is(1L));
+        release.countDown();
+    }
+
+    @Test
+    public void acceptedPushIsFlaggedAsUnverifiedWhenTheQueueIsFull() throws Exception {
+        enforcer.onStop();
+        enforcer = new AsyncEnforcer(changesetService, store, securityService(), mock(EventPublisher.class), 1, 2);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<RefChange> blocking = Collections.singletonList(refChange("refs/heads/blocking", RefChangeType.UPDATE, "a", "b"));
+        enforcer.prepare(repository, HOOK, blocking, (refChange, out) -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, stillViolating(true));
+        enforcer.accepted(repository, blocking);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        List<RefChange> first = Collections.singletonList(refChange("refs/heads/first", RefChangeType.UPDATE, "a", "b"));
+        List<RefChange> late = Collections.singletonList(refChange(RefChangeType.UPDATE, "c", "d"));
+        List<RefChange> second = Collections.singletonList(refChange("refs/heads/second", RefChangeType.UPDATE, "a", "b"));
+        CountDownLatch verified = new CountDownLatch(1);
+        enforcer.prepare(repository, HOOK, first, passes(), stillViolating(true));
+        enforcer.prepare(repository, HOOK, late, (refChange, out) -> {
+            verified.countDown();
+            return true;
+        }, stillViolating(true));
+        enforcer.accepted(repository, first);
+        enforcer.prepare(repository, HOOK, second, passes(), stillViolating(true));
+        enforcer.accepted(repository, second);
+
+        enforcer.accepted(repository, late);
+
+        assertThat(store.get(repository, HOOK, REF).get().getCommitId(), is("d"));
+        assertThat(enforcer.getUnverifiedCount(), is(1L));
+        assertThat(verified.getCount(), is(1L));
+        release.countDown();
+    }
+
+    @Test
+    public void acceptedPushIsFlaggedAsUnverifiedWhenItsVerificationWasEvicted() {
+        List<RefChange> evicted = Collections.singletonList(refChange(RefChangeType.UPDATE, "a", "b"));
+        enforcer.prepare(repository, HOOK, evicted, passes(), stillViolating(true));
+        enforcer.prepare(repository, HOOK, Collections.singletonList(refChange("refs/heads/other", RefChangeType.UPDATE, "a", "c")),
+                passes(), stillViolating(true));
+
+        enforcer.accepted(repository, evicted);
+
+        FlagStore.Flag flag = store.get(repository, HOOK, REF).get();
+        assertThat(flag.getCommitId(), is("b"));
+        assertTrue(flag.getReport().contains("could not be verified"));
+        assertThat(enforcer.getUnverifiedCount(), is(1L));
+    }
+
+    @Test
+    public void onlyTheAppliedRefChangesOfAPartiallyAppliedPushAreVerified() throws Exception {
+        RefChange applied = refChange(RefChangeType.UPDATE, "a", "b");
+        RefChange failed = refChange("refs/heads/failed", RefChangeType.UPDATE, "a", "c");
+        List<String> verifiedRefs = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch verified = new CountDownLatch(1);
+        enforcer.prepare(repository, HOOK, Arrays.asList(applied, failed), (refChange, out) -> {
+            verifiedRefs.add(refChange.getRef().getId());
+            verified.countDown();
+            return false;
+        }, stillViolating(true));
+
+        enforcer.accepted(repository, Collections.singletonList(applied));
+
+        assertTrue(verified.await(10, TimeUnit.SECONDS));
+        assertThat(verifiedRefs, is(Collections.singletonList(REF)));
+        assertThat(enforcer.getUnverifiedCount(), is(0L));
+    }
+
+    private static RefChange refChange(RefChangeType type, String fromHash, String toHash) {
+        return refChange(REF, type, fromHash, toHash);
+    }
+
+    private static RefChange refChange(String refId, RefChangeType type, String fromHash, String toHash) {
+        Ref ref = mock(Ref.class);
+        when(ref.getId()).thenReturn(refId);
+        RefChange refChange = mock(RefChange.class);
+        when(refChange.getRef()).thenReturn(ref);
+        when(refChange.getType()).thenReturn(type);
+        when(refChange.getFromHash()).thenReturn(fromHash);
+        when(refChange.getToHash()).thenReturn(toHash);
+        return refChange;
+    }
+
+    private static BiPredicate<RefChange, PrintWriter> fails(String report) {
+        return (refChange, out) -> {
+            out.println(report);
+            return false;
+        };
+    }
+
+    private static BiPredicate<RefChange, PrintWriter> passes() {
+        return (refChange, out) -> true;
+    }
+
+    private static BiPredicate<FlagStore.Flag, RefChange> stillViolating(boolean violating) {
+        return (flag, refChange) -> violating;
+    }
+
+    /**
+     * Runs operations right away, with the permissions of the caller.
+     */
+    private static SecurityService securityService() {
+        EscalatedSecurityContext context = (EscalatedSecurityContext) Proxy.newProxyInstance(AsyncEnforcerTest.class.getClassLoader(),
+                new Class<?>[]{EscalatedSecurityContext.class}, (proxy, method, args) -> ((Operation<?, ?>) args[0]).perform());
+        return (SecurityService) Proxy.newProxyInstance(AsyncEnforcerTest.class.getClassLoader(),
+                new Class<?>[]{SecurityService.class}, (proxy, method, args) -> context);
+    }
+
+    private static class MapPluginSettings implements PluginSettings {
+
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return values.put(key, value);
+        }
+
+        @Override
+        public Object remove(String key) {
+            return values.remove(key);
+        }
+    }
+}
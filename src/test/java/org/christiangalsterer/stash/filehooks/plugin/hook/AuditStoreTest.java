@@ -0,0 +1,129 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuditStoreTest {
+
+    private AuditStore store;
+    private Repository repository;
+
+    @Before
+    public void setUp() {
+        PluginSettingsFactory factory = mock(PluginSettingsFactory.class);
+        when(factory.createGlobalSettings()).thenReturn(new MapPluginSettings());
+        store = new AuditStore(factory);
+        repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+    }
+
+    @Test
+    public void checkpointIsLoadedAfterRestart() {
+        store.start(repository, new AuditSetting(1000L, "\\.jar$"));
+        store.setState(repository, AuditReport.State.RUNNING);
+        AuditViolation violation = new AuditViolation("a1", "lib/a b.jar", 2000, AuditViolation.Reason.SIZE);
+        store.checkpoint(repository, new LinkedHashSet<>(Arrays.asList("tip1", "tip2")), Collections.singletonList(violation), true);
+
+        AuditReport report = store.load(1).get();
+        assertThat(report.getState(), is(AuditReport.State.RUNNING));
+        assertThat(report.getCompletedTips(), is(new LinkedHashSet<>(Arrays.asList("tip1", "tip2"))));
+        assertThat(report.getViolations().get(0).getPath(), is("lib/a b.jar"));
+        assertThat(report.getViolations().get(0).getSize(), is(2000L));
+        assertTrue(report.isTruncated());
+        assertThat(store.getUnfinished(), is(Collections.singletonList(1)));
+        assertThat(store.loadSetting(1).get().getSize(), is(1000L));
+    }
+
+    @Test
+    public void finishedAuditsAreNotResumed() {
+        store.start(repository, new AuditSetting(1000L, null));
+        store.setState(repository, AuditReport.State.COMPLETED);
+
+        assertTrue(store.getUnfinished().isEmpty());
+    }
+
+    @Test
+    public void historyAuditWithSameSettingContinuesFromCheckpoint() {
+        store.start(repository, new AuditSetting(1000L, null));
+        store.checkpoint(repository, Collections.singleton("tip1"), Collections.emptyList(), false);
+
+        store.start(repository, new AuditSetting(1000L, null));
+
+        assertThat(store.load(1).get().getState(), is(AuditReport.State.QUEUED));
+        assertThat(store.load(1).get().getCompletedTips(), is(Collections.singleton("tip1")));
+    }
+
+    @Test
+    public void changedSettingStartsOver() {
+        store.start(repository, new AuditSetting(1000L, null));
+        store.checkpoint(repository, Collections.singleton("tip1"), Collections.emptyList(), false);
+
+        store.start(repository, new AuditSetting(2000L, null));
+
+        assertTrue(store.load(1).get().getCompletedTips().isEmpty());
+    }
+
+    @Test
+    public void tipAuditStartsOver() {
+        store.start(repository, new AuditSetting(1000L, null, AuditSetting.Scope.TIPS));
+        store.checkpoint(repository, Collections.singleton("tip1"), Collections.emptyList(), false);
+
+        store.start(repository, new AuditSetting(1000L, null, AuditSetting.Scope.TIPS));
+
+        assertTrue(store.load(1).get().getCompletedTips().isEmpty());
+        assertThat(store.loadSetting(1).get().getScope(), is(AuditSetting.Scope.TIPS));
+    }
+
+    @Test
+    public void progressWithinATipIsKeptUntilTheTipIsComplete() {
+        store.start(repository, new AuditSetting(1000L, null));
+        store.checkpoint(repository, Collections.emptySet(), "tip1", 42, Collections.emptyList(), false);
+
+        assertThat(store.load(1).get().getCurrentTip().get(), is("tip1"));
+        assertThat(store.load(1).get().getCurrentTipCommits(), is(42L));
+
+        store.checkpoint(repository, Collections.singleton("tip1"), Collections.emptyList(), false);
+
+        assertFalse(store.load(1).get().getCurrentTip().isPresent());
+    }
+
+    @Test
+    public void unknownRepositoryHasNoReport() {
+        assertFalse(store.load(2).isPresent());
+        assertFalse(store.loadSetting(2).isPresent());
+    }
+
+    private static class MapPluginSettings implements PluginSettings {
+
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return values.put(key, value);
+        }
+
+        @Override
+        public Object remove(String key) {
+            return values.remove(key);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChangesetServiceImplTest {
+
+    @Test
+    public void objectFilterRequiresGit216() {
+        assertTrue(ChangesetServiceImpl.isAtLeast("git version 2.16.0", 2, 16));
+        assertTrue(ChangesetServiceImpl.isAtLeast("git version 2.20.1.windows.1", 2, 16));
+        assertTrue(ChangesetServiceImpl.isAtLeast("git version 3.0.0", 2, 16));
+        assertFalse(ChangesetServiceImpl.isAtLeast("git version 2.9.5", 2, 16));
+        assertFalse(ChangesetServiceImpl.isAtLeast("git version 1.99.0", 2, 16));
+        assertFalse(ChangesetServiceImpl.isAtLeast("unexpected", 2, 16));
+        assertFalse(ChangesetServiceImpl.isAtLeast(null, 2, 16));
+    }
+}
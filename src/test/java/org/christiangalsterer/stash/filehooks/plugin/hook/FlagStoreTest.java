@@ -0,0 +1,111 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlagStoreTest {
+
+    private static final String REF = "refs/heads/feature/large-files";
+
+    private MapPluginSettings settings;
+    private FlagStore store;
+    private Repository repository;
+
+    @Before
+    public void setUp() {
+        settings = new MapPluginSettings();
+        PluginSettingsFactory factory = mock(PluginSettingsFactory.class);
+        when(factory.createGlobalSettings()).thenReturn(settings);
+        store = new FlagStore(factory);
+        repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+    }
+
+    @Test
+    public void flagIsSerializedWithMultiLineReports() {
+        String report = "=== File Size Hook ===\n\nFile [a\tb.bin] is too large.\n";
+        FlagStore.Flag flag = FlagStore.Flag.deserialize(new FlagStore.Flag("filesize-hook", REF, "c0ffee", report).serialize());
+
+        assertThat(flag.getHook(), is("filesize-hook"));
+        assertThat(flag.getRefId(), is(REF));
+        assertThat(flag.getCommitId(), is("c0ffee"));
+        assertThat(flag.getReport(), is(report));
+    }
+
+    @Test
+    public void flagsAreKeptPerHookAndRef() {
+        store.flag(repository, new FlagStore.Flag("filesize-hook", REF, "c1", "size"));
+        store.flag(repository, new FlagStore.Flag("filename-hook", REF, "c2", "name"));
+        store.flag(repository, new FlagStore.Flag("filesize-hook", "refs/heads/other", "c3", "other"));
+
+        assertThat(settings.values.size(), is(3));
+        assertThat(store.get(repository, "filesize-hook", REF).get().getCommitId(), is("c1"));
+        assertThat(store.get(repository, "filename-hook", REF).get().getCommitId(), is("c2"));
+        assertThat(store.get(repository, "filesize-hook", "refs/heads/other").get().getCommitId(), is("c3"));
+        assertFalse(store.get(repository, "filename-hook", "refs/heads/other").isPresent());
+    }
+
+    @Test
+    public void flaggingAgainReplacesTheFlag() {
+        store.flag(repository, new FlagStore.Flag("filesize-hook", REF, "c1", "first"));
+        store.flag(repository, new FlagStore.Flag("filesize-hook", REF, "c1", "second"));
+
+        assertThat(settings.values.size(), is(1));
+        assertThat(store.get(repository, "filesize-hook", REF).get().getReport(), is("second"));
+    }
+
+    @Test
+    public void clearingRemovesOnlyTheFlagOfTheRef() {
+        store.flag(repository, new FlagStore.Flag("filesize-hook", REF, "c1", "size"));
+        store.flag(repository, new FlagStore.Flag("filesize-hook", "refs/heads/other", "c2", "other"));
+
+        store.clear(repository, "filesize-hook", REF);
+
+        assertFalse(store.get(repository, "filesize-hook", REF).isPresent());
+        assertTrue(store.get(repository, "filesize-hook", "refs/heads/other").isPresent());
+        assertThat(settings.values.size(), is(1));
+    }
+
+    @Test
+    public void keysAreShortForLongRefNames() {
+        StringBuilder ref = new StringBuilder("refs/heads/");
+        for (int i = 0; i < 50; i++) {
+            ref.append("very-long-name/");
+        }
+        store.flag(repository, new FlagStore.Flag("filesize-hook", ref.toString(), "c1", "size"));
+
+        assertTrue(settings.values.keySet().iterator().next().length() < 100);
+        assertTrue(store.get(repository, "filesize-hook", ref.toString()).isPresent());
+    }
+
+    private static class MapPluginSettings implements PluginSettings {
+
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return values.put(key, value);
+        }
+
+        @Override
+        public Object remove(String key) {
+            return values.remove(key);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.scm.Command;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs git in repositories created by tests.
+ */
+final class GitTestUtils {
+
+    private GitTestUtils() {
+    }
+
+    static List<String> git(File directory, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.add("-c");
+        command.add("user.name=Test");
+        command.add("-c");
+        command.add("user.email=test@example.com");
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertThat(String.join("\n", lines), process.waitFor(), is(0));
+        return lines;
+    }
+
+    static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static boolean isGitAvailable() {
+        try {
+            return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds git commands like Bitbucket does, running them in the given directory and feeding the input and
+     * output handlers of the command from separate threads.
+     */
+    static GitCommandBuilderFactory commandFactory(File directory) {
+        return (GitCommandBuilderFactory) Proxy.newProxyInstance(GitTestUtils.class.getClassLoader(),
+                new Class<?>[]{GitCommandBuilderFactory.class}, (factory, factoryMethod, factoryArgs) -> {
+                    if (!factoryMethod.getName().equals("builder")) {
+                        throw new UnsupportedOperationException(factoryMethod.getName());
+                    }
+                    List<String> command = new ArrayList<>();
+                    command.add("git");
+                    Object[] inputHandler = {null};
+                    return Proxy.newProxyInstance(GitTestUtils.class.getClassLoader(),
+                            new Class<?>[]{GitScmCommandBuilder.class}, (builder, method, args) -> {
+                                switch (method.getName()) {
+                                    case "command":
+                                    case "argument":
+                                        command.add((String) args[0]);
+                                        return builder;
+                                    case "inputHandler":
+                                        inputHandler[0] = args[0];
+                                        return builder;
+                                    case "build":
+                                        return (Command<Object>) () -> run(directory, command, inputHandler[0], args[0]);
+                                    default:
+                                        throw new UnsupportedOperationException(method.getName());
+                                }
+                            });
+                });
+    }
+
+    private static Object run(File directory, List<String> command, Object inputHandler, Object outputHandler) {
+        try {
+            Process process = new ProcessBuilder(command).directory(directory).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            Thread input = new Thread(() -> {
+                if (inputHandler != null) {
+                    invoke(inputHandler, "process", OutputStream.class, process.getOutputStream());
+                } else {
+                    closeQuietly(process.getOutputStream());
+                }
+            });
+            input.start();
+            try {
+                invoke(outputHandler, "process", InputStream.class, process.getInputStream());
+            } finally {
+                input.join();
+                closeQuietly(process.getInputStream());
+                process.waitFor();
+            }
+            return invoke(outputHandler, "getOutput", null, null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object invoke(Object target, String name, Class<?> parameterType, Object argument) {
+        try {
+            Method method = parameterType == null ? target.getClass().getMethod(name) : target.getClass().getMethod(name, parameterType);
+            method.setAccessible(true);
+            return parameterType == null ? method.invoke(target) : method.invoke(target, argument);
+        } catch (InvocationTargetException e) {
+            // Bitbucket fails the command with a runtime exception if a handler fails
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
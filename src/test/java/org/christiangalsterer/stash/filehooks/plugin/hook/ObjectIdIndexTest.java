@@ -0,0 +1,88 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class ObjectIdIndexTest {
+
+    private static final String ID = "0123456789abcdef0123456789abcdef01234567";
+
+    @Test
+    public void addReturnsSameIndexForSameId() throws Exception {
+        ObjectIdIndex index = new ObjectIdIndex(Long.MAX_VALUE);
+
+        assertThat(index.add(ID), is(0));
+        assertThat(index.add(ID), is(0));
+        assertThat(index.size(), is(1));
+        assertThat(index.get(0), is(ID));
+    }
+
+    @Test
+    public void indexOfMissingId() throws Exception {
+        ObjectIdIndex index = new ObjectIdIndex(Long.MAX_VALUE);
+        index.add(ID);
+
+        assertThat(index.indexOf("ffffffffffffffffffffffffffffffffffffffff"), is(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidId() throws Exception {
+        new ObjectIdIndex(Long.MAX_VALUE).add("refs/heads/master");
+    }
+
+    @Test
+    public void growsAndSpillsToMappedFile() throws Exception {
+        ObjectIdIndex index = new ObjectIdIndex(4096);
+        List<String> ids = randomIds(10000);
+
+        for (int i = 0; i < ids.size(); i++) {
+            assertThat(index.add(ids.get(i)), is(i));
+        }
+
+        assertTrue(index.isSpilled());
+        for (int i = 0; i < ids.size(); i++) {
+            assertThat(index.indexOf(ids.get(i)), is(i));
+            assertThat(index.get(i), is(ids.get(i)));
+        }
+    }
+
+    @Test
+    public void spillsIdsAndLookupTableTogether() throws Exception {
+        ObjectIdIndex index = new ObjectIdIndex(100000);
+        List<String> ids = randomIds(5000);
+
+        for (int i = 0; i < 1000; i++) {
+            index.add(ids.get(i));
+        }
+        assertFalse(index.isSpilled());
+        assertTrue(index.getHeapBytes() > 1000 * ObjectIdIndex.ID_LENGTH);
+
+        for (int i = 1000; i < ids.size(); i++) {
+            index.add(ids.get(i));
+        }
+        assertTrue(index.isSpilled());
+        assertThat(index.getHeapBytes(), is(0L));
+        for (int i = 0; i < ids.size(); i++) {
+            assertThat(index.indexOf(ids.get(i)), is(i));
+        }
+    }
+
+    private static List<String> randomIds(int count) {
+        Random random = new Random(42);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder id = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                id.append(Character.forDigit(random.nextInt(16), 16));
+            }
+            ids.add(id.toString());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,222 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.GitTestUtils.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class PackObjectSizeReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File repository;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(isGitAvailable());
+        repository = folder.newFolder("repository");
+        git(repository, "init", "-q");
+
+        Random random = new Random(42);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            content.append("line ").append(random.nextInt()).append('\n');
+        }
+        // Similar revisions of the same file end up as deltas of each other
+        for (int commit = 0; commit < 10; commit++) {
+            content.append("change ").append(commit).append('\n');
+            write("file.txt", content.toString());
+            write("dir/small-" + commit + ".txt", "small " + commit);
+            write("empty.txt", "");
+            git(repository, "add", "-A");
+            git(repository, "commit", "-q", "-m", "commit " + commit);
+        }
+    }
+
+    @Test
+    public void readsPackedObjectsLikeGit() throws Exception {
+        git(repository, "gc", "-q", "--aggressive");
+
+        assertSizesMatchGit(repository);
+    }
+
+    @Test
+    public void readsLooseObjectsLikeGit() throws Exception {
+        assertSizesMatchGit(repository);
+    }
+
+    @Test
+    public void readsObjectsOfAlternates() throws Exception {
+        git(repository, "repack", "-q", "-a", "-d");
+        File fork = folder.newFolder("fork");
+        git(fork, "init", "-q");
+        GitTestUtils.write(new File(fork, ".git/objects/info/alternates"), new File(repository, ".git/objects").getAbsolutePath());
+
+        Map<String, Long> expected = catFileBatchCheck(repository);
+        List<String> unreadable = new ArrayList<>();
+        Map<String, Long> sizes = new PackObjectSizeReader(new File(fork, ".git/objects")).getBlobSizes(expected.keySet(), unreadable);
+
+        assertTrue(unreadable.isEmpty());
+        assertThat(sizes, is(blobsOnly(repository, expected)));
+    }
+
+    @Test
+    public void readsObjectsOfQuarantinedPushesFromTheirOwnDirectory() throws Exception {
+        git(repository, "repack", "-q", "-a", "-d");
+        File remote = folder.newFolder("remote");
+        git(remote, "init", "-q", "--bare");
+        // Keeps the objects of the push in quarantine for as long as the push is being received
+        File quarantinePath = new File(folder.getRoot(), "quarantine");
+        GitTestUtils.write(new File(remote, "hooks/pre-receive"), "#!/bin/sh\n"
+                + "cp -r \"$GIT_QUARANTINE_PATH\" '" + quarantinePath.getAbsolutePath() + "'\n"
+                + "basename \"$GIT_QUARANTINE_PATH\" > '" + quarantinePath.getAbsolutePath() + ".name'\n"
+                + "echo \"$GIT_QUARANTINE_PATH\" > '" + quarantinePath.getAbsolutePath() + ".env'\n"
+                + "git rev-parse --git-path objects > '" + quarantinePath.getAbsolutePath() + ".git-path'\n"
+                + "exit 1\n");
+        new File(remote, "hooks/pre-receive").setExecutable(true);
+        boolean rejected = false;
+        try {
+            git(repository, "push", "-q", remote.getAbsolutePath(), "HEAD:refs/heads/master");
+        } catch (AssertionError e) {
+            // Rejected by the hook, git removed the quarantine
+            rejected = true;
+        }
+        assertTrue(rejected);
+        // Git reports the quarantine to commands run by the hook, which is how BlobSizer finds it
+        assertThat(read(new File(quarantinePath.getAbsolutePath() + ".git-path")),
+                is(read(new File(quarantinePath.getAbsolutePath() + ".env"))));
+        File objectsDir = new File(remote, "objects");
+        PackObjectSizeReader reader = new PackObjectSizeReader(objectsDir);
+
+        File quarantine = new File(objectsDir, read(new File(quarantinePath.getAbsolutePath() + ".name")));
+        copy(quarantinePath, quarantine);
+
+        // Quarantines of other pushes are neither read nor outdate the reader
+        assertTrue(reader.isCurrent());
+        Map<String, Long> expected = catFileBatchCheck(repository);
+        List<String> unreadable = new ArrayList<>();
+        assertTrue(reader.getBlobSizes(expected.keySet(), unreadable).isEmpty());
+        assertThat(unreadable.size(), is(expected.size()));
+
+        List<String> unreadableInQuarantine = new ArrayList<>();
+        Map<String, Long> sizes = new PackObjectSizeReader(quarantine).getBlobSizes(unreadable, unreadableInQuarantine);
+
+        assertTrue(unreadableInQuarantine.isEmpty());
+        assertThat(sizes, is(blobsOnly(repository, expected)));
+    }
+
+    @Test
+    public void isOutdatedByNewPacks() throws Exception {
+        git(repository, "repack", "-q", "-a", "-d");
+        PackObjectSizeReader reader = new PackObjectSizeReader(new File(repository, ".git/objects"));
+        assertTrue(reader.isCurrent());
+
+        write("new.txt", "new");
+        git(repository, "add", "-A");
+        git(repository, "commit", "-q", "-m", "new");
+        git(repository, "repack", "-q", "-d");
+
+        assertFalse(reader.isCurrent());
+        assertTrue(new PackObjectSizeReader(new File(repository, ".git/objects")).isCurrent());
+    }
+
+    @Test
+    public void keepsReadingPacksRemovedOnceOutdated() throws Exception {
+        git(repository, "repack", "-q", "-a", "-d");
+        Map<String, Long> expected = catFileBatchCheck(repository);
+        Map<String, Long> expectedBlobs = blobsOnly(repository, expected);
+        PackObjectSizeReader reader = new PackObjectSizeReader(new File(repository, ".git/objects"));
+        reader.getBlobSizes(expected.keySet(), new ArrayList<>());
+
+        // Rewrites all objects into a new pack and deletes the pack mapped by the reader
+        write("new.txt", "new");
+        git(repository, "add", "-A");
+        git(repository, "commit", "-q", "-m", "new");
+        git(repository, "repack", "-q", "-a", "-d", "-f");
+        assertFalse(reader.isCurrent());
+
+        // Mappings are never released while the reader is reachable, so a hook still using it is not affected
+        List<String> unreadable = new ArrayList<>();
+        assertThat(reader.getBlobSizes(expected.keySet(), unreadable), is(expectedBlobs));
+        assertTrue(unreadable.isEmpty());
+    }
+
+    @Test
+    public void leavesUnknownObjectsToGit() throws Exception {
+        String missing = "0123456789abcdef0123456789abcdef01234567";
+        List<String> unreadable = new ArrayList<>();
+
+        Map<String, Long> sizes = new PackObjectSizeReader(new File(repository, ".git/objects"))
+                .getBlobSizes(Collections.singletonList(missing), unreadable);
+
+        assertTrue(sizes.isEmpty());
+        assertThat(unreadable, is(Collections.singletonList(missing)));
+    }
+
+    private void assertSizesMatchGit(File repository) throws Exception {
+        Map<String, Long> expected = catFileBatchCheck(repository);
+        assertFalse(expected.isEmpty());
+
+        List<String> unreadable = new ArrayList<>();
+        Map<String, Long> sizes = new PackObjectSizeReader(new File(repository, ".git/objects")).getBlobSizes(expected.keySet(), unreadable);
+
+        assertTrue(unreadable.isEmpty());
+        assertThat(sizes, is(blobsOnly(repository, expected)));
+    }
+
+    private Map<String, Long> blobsOnly(File repository, Map<String, Long> sizes) throws Exception {
+        Map<String, Long> blobs = new HashMap<>();
+        for (String line : git(repository, "cat-file", "--batch-all-objects", "--batch-check=%(objectname) %(objecttype)")) {
+            String[] split = line.split(" ");
+            if (split[1].equals("blob")) {
+                blobs.put(split[0], sizes.get(split[0]));
+            }
+        }
+        return blobs;
+    }
+
+    private Map<String, Long> catFileBatchCheck(File repository) throws Exception {
+        Map<String, Long> sizes = new HashMap<>();
+        for (String line : git(repository, "cat-file", "--batch-all-objects", "--batch-check=%(objectname) %(objectsize)")) {
+            String[] split = line.split(" ");
+            sizes.put(split[0], Long.parseLong(split[1]));
+        }
+        return sizes;
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        if (source.isDirectory()) {
+            target.mkdirs();
+            for (File child : source.listFiles()) {
+                copy(child, new File(target, child.getName()));
+            }
+        } else {
+            Files.copy(source.toPath(), target.toPath());
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private void write(String path, String content) throws IOException {
+        GitTestUtils.write(new File(repository, path), content);
+    }
+}
@@ -0,0 +1,187 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.GitScmConfig;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.GitTestUtils.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RepositoryAuditJobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private Repository repository;
+    private GitCommandBuilderFactory commandFactory;
+    private BlobSizer blobSizer;
+    private RecordingAuditStore store;
+    private FileHooksConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(isGitAvailable());
+        directory = folder.newFolder("repository");
+        git(directory, "init", "-q");
+        repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("plugin.filehooks.audit.batch.size", 1);
+        properties.put("plugin.filehooks.audit.budget.percent", 100);
+        config = new FileHooksConfig((ApplicationPropertiesService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ApplicationPropertiesService.class},
+                (proxy, method, args) -> properties.getOrDefault((String) args[0], args.length > 1 ? args[1] : null)));
+        GitScmConfig gitScmConfig = mock(GitScmConfig.class);
+        when(gitScmConfig.getObjectsDir(repository)).thenReturn(new File(directory, ".git/objects"));
+        commandFactory = commandFactory(directory);
+        blobSizer = new BlobSizer(commandFactory, gitScmConfig, config);
+        PluginSettingsFactory factory = mock(PluginSettingsFactory.class);
+        when(factory.createGlobalSettings()).thenReturn(new MapPluginSettings());
+        store = new RecordingAuditStore(factory);
+    }
+
+    @Test
+    public void reportsKnownContentCommittedUnderANewForbiddenName() throws Exception {
+        write("lib/tool.txt", "tool");
+        commit("add tool");
+        AuditSetting setting = new AuditSetting(null, "\\.exe$");
+        audit(setting);
+        assertTrue(store.load(1).get().getViolations().isEmpty());
+
+        git(directory, "checkout", "-q", "-b", "feature");
+        write("bin/tool.exe", "tool");
+        commit("copy tool");
+        AuditReport report = audit(setting);
+
+        assertThat(report.getState(), is(AuditReport.State.COMPLETED));
+        assertThat(paths(report.getViolations()), is(Collections.singletonList("bin/tool.exe")));
+        assertThat(report.getViolations().get(0).getReason(), is(AuditViolation.Reason.NAME));
+        assertThat(report.getViolations().get(0).getSize(), is(4L));
+    }
+
+    @Test
+    public void reportsOversizedContentOnce() throws Exception {
+        write("a/large.bin", "0123456789");
+        commit("add large file");
+        write("b/large.bin", "0123456789");
+        commit("copy large file");
+
+        AuditReport report = audit(new AuditSetting(5L, null));
+
+        assertThat(report.getViolations(AuditViolation.Reason.SIZE).size(), is(1));
+        assertThat(report.getTotalOversizedBytes(), is(10L));
+    }
+
+    @Test
+    public void checkpointsEveryBatchWithinATip() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            write("file" + i + ".exe", "content " + i);
+            commit("commit " + i);
+        }
+
+        AuditReport report = audit(new AuditSetting(null, "\\.exe$"));
+
+        String tip = git(directory, "rev-parse", "HEAD").get(0);
+        assertThat(store.progress, is(java.util.Arrays.asList(tip + ":1", tip + ":2")));
+        assertThat(report.getViolations().size(), is(3));
+        assertFalse(report.getCurrentTip().isPresent());
+        assertThat(report.getCompletedTips(), is(Collections.singleton(tip)));
+    }
+
+    @Test
+    public void resumesATipAfterTheCommitsAuditedBefore() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            write("file" + i + ".exe", "content " + i);
+            commit("commit " + i);
+        }
+        String tip = git(directory, "rev-parse", "HEAD").get(0);
+        AuditSetting setting = new AuditSetting(null, "\\.exe$");
+        store.start(repository, setting);
+        // The two newest commits were audited before the audit was interrupted
+        store.checkpoint(repository, Collections.emptySet(), tip, 2, Collections.emptyList(), false);
+
+        new RepositoryAuditJob(repository, setting, commandFactory, blobSizer, new TreeVerdictCache(1000), store, config).run();
+
+        assertThat(paths(store.load(1).get().getViolations()), is(Collections.singletonList("file1.exe")));
+    }
+
+    private AuditReport audit(AuditSetting setting) {
+        store.start(repository, setting);
+        new RepositoryAuditJob(repository, setting, commandFactory, blobSizer, new TreeVerdictCache(1000), store, config).run();
+        return store.load(1).get();
+    }
+
+    private static List<String> paths(List<AuditViolation> violations) {
+        return violations.stream().map(AuditViolation::getPath).collect(Collectors.toList());
+    }
+
+    private void write(String path, String content) throws Exception {
+        GitTestUtils.write(new File(directory, path), content);
+    }
+
+    private void commit(String message) throws Exception {
+        git(directory, "add", "-A");
+        git(directory, "commit", "-q", "-m", message);
+    }
+
+    private static class RecordingAuditStore extends AuditStore {
+
+        private final List<String> progress = new ArrayList<>();
+
+        RecordingAuditStore(PluginSettingsFactory pluginSettingsFactory) {
+            super(pluginSettingsFactory);
+        }
+
+        @Override
+        synchronized void checkpoint(Repository repository, Set<String> completedTips, String currentTip, long currentTipCommits,
+                                     List<AuditViolation> violations, boolean truncated) {
+            if (currentTip != null) {
+                progress.add(currentTip + ":" + currentTipCommits);
+            }
+            super.checkpoint(repository, completedTips, currentTip, currentTipCommits, violations, truncated);
+        }
+    }
+
+    private static class MapPluginSettings implements PluginSettings {
+
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return values.put(key, value);
+        }
+
+        @Override
+        public Object remove(String key) {
+            return values.remove(key);
+        }
+    }
+}
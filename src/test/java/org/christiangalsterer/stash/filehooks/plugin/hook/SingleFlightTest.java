@@ -0,0 +1,80 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallersShareOneComputation() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<Integer> first = executor.submit(() -> flights.execute("key", () -> {
+                started.countDown();
+                await(release);
+                return computations.incrementAndGet();
+            }));
+            started.await();
+            Future<Integer> second = executor.submit(() -> flights.execute("key", computations::incrementAndGet));
+
+            // Give the second caller time to join before the computation completes
+            Thread.sleep(200);
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS), is(1));
+            assertThat(second.get(5, TimeUnit.SECONDS), is(1));
+            assertThat(computations.get(), is(1));
+            assertThat(flights.size(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sequentialCallersComputeAgain() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+
+        flights.execute("key", computations::incrementAndGet);
+        flights.execute("key", computations::incrementAndGet);
+
+        assertThat(computations.get(), is(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void exceptionIsPropagated() throws Exception {
+        new SingleFlight<String, Integer>().execute("key", () -> {
+            throw new IllegalStateException();
+        });
+    }
+
+    @Test
+    public void fingerprintDependsOnValues() throws Exception {
+        assertThat(SingleFlight.fingerprint(Arrays.asList("a", "b")), is(SingleFlight.fingerprint(Arrays.asList("a", "b"))));
+        assertThat(SingleFlight.fingerprint(Arrays.asList("a", "b")), not(SingleFlight.fingerprint(Arrays.asList("ab"))));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
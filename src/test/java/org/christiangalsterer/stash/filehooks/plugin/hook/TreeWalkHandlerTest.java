@@ -0,0 +1,191 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.GitTestUtils.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+public class TreeWalkHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File repository;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(isGitAvailable());
+        repository = folder.newFolder("repository");
+        git(repository, "init", "-q");
+        GitTestUtils.write(new File(repository, "README.md"), "readme");
+        GitTestUtils.write(new File(repository, "dir with spaces/notes #1.txt"), "notes");
+        GitTestUtils.write(new File(repository, "src/main/App.java"), "class App {}");
+        GitTestUtils.write(new File(repository, "src/main/empty.txt"), "");
+        GitTestUtils.write(new File(repository, "src/test/AppTest.java"), "class AppTest {}");
+        git(repository, "add", "-A");
+        git(repository, "commit", "-q", "-m", "files");
+        // Submodules are recorded as commits in the tree
+        String commit = git(repository, "rev-parse", "HEAD").get(0);
+        git(repository, "update-index", "--add", "--cacheinfo", "160000," + commit + ",module");
+        git(repository, "commit", "-q", "-m", "submodule");
+    }
+
+    @Test
+    public void readsAllEntriesLikeGit() throws Exception {
+        List<String> trees = new ArrayList<>();
+        List<String> subtrees = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        walk("HEAD^{tree}", new TreeWalkHandler.Visitor() {
+            @Override
+            public boolean onTree(String treeId, String path) {
+                trees.add(treeId + " " + path);
+                return true;
+            }
+
+            @Override
+            public boolean onSubtree(String treeId, String path) {
+                subtrees.add(treeId + " " + path);
+                return true;
+            }
+
+            @Override
+            public void onBlob(String blobId, String path) {
+                blobs.add(blobId + " " + path);
+            }
+        });
+
+        List<String> expectedSubtrees = new ArrayList<>();
+        List<String> expectedBlobs = new ArrayList<>();
+        // <mode> <type> <id>\t<path>
+        for (String line : git(repository, "-c", "core.quotePath=false", "ls-tree", "-r", "-t", "HEAD")) {
+            String[] entry = line.split("[ \t]", 4);
+            if (entry[1].equals("tree")) {
+                expectedSubtrees.add(entry[2] + " " + entry[3] + "/");
+            } else if (entry[1].equals("blob")) {
+                expectedBlobs.add(entry[2] + " " + entry[3]);
+            }
+        }
+        List<String> expectedTrees = new ArrayList<>();
+        expectedTrees.add(git(repository, "rev-parse", "HEAD^{tree}").get(0) + " ");
+        expectedTrees.addAll(expectedSubtrees);
+
+        assertThat(sorted(subtrees), is(sorted(expectedSubtrees)));
+        assertThat(sorted(trees), is(sorted(expectedTrees)));
+        assertThat(sorted(blobs), is(sorted(expectedBlobs)));
+        assertFalse(blobs.toString().contains("module"));
+    }
+
+    @Test
+    public void skipsSubtreesNotRequested() throws Exception {
+        List<String> paths = new ArrayList<>();
+        walk("HEAD^{tree}", new TreeWalkHandler.Visitor() {
+            @Override
+            public boolean onTree(String treeId, String path) {
+                paths.add(path);
+                return true;
+            }
+
+            @Override
+            public boolean onSubtree(String treeId, String path) {
+                return !path.equals("src/");
+            }
+
+            @Override
+            public void onBlob(String blobId, String path) {
+                paths.add(path);
+            }
+        });
+
+        assertThat(sorted(paths), is(sorted(Arrays.asList("", "README.md", "dir with spaces/", "dir with spaces/notes #1.txt"))));
+    }
+
+    @Test
+    public void skipsEntriesOfTreesNotVisited() throws Exception {
+        List<String> paths = new ArrayList<>();
+        walk("HEAD^{tree}", new TreeWalkHandler.Visitor() {
+            @Override
+            public boolean onTree(String treeId, String path) {
+                paths.add(path);
+                return false;
+            }
+
+            @Override
+            public boolean onSubtree(String treeId, String path) {
+                return true;
+            }
+
+            @Override
+            public void onBlob(String blobId, String path) {
+                paths.add(path);
+            }
+        });
+
+        assertThat(paths, is(Arrays.asList("")));
+    }
+
+    @Test
+    public void failsForMissingTrees() throws Exception {
+        String subtreeId = git(repository, "rev-parse", "HEAD:src/main").get(0);
+        assertTrue(new File(repository, ".git/objects/" + subtreeId.substring(0, 2) + "/" + subtreeId.substring(2)).delete());
+
+        assertFailure("HEAD^{tree}");
+    }
+
+    @Test
+    public void failsForObjectsWhichAreNoTrees() throws Exception {
+        assertFailure("HEAD:README.md");
+    }
+
+    private void assertFailure(String revision) {
+        List<String> paths = new ArrayList<>();
+        try {
+            walk(revision, new TreeWalkHandler.Visitor() {
+                @Override
+                public boolean onTree(String treeId, String path) {
+                    paths.add(path);
+                    return true;
+                }
+
+                @Override
+                public boolean onSubtree(String treeId, String path) {
+                    return true;
+                }
+
+                @Override
+                public void onBlob(String blobId, String path) {
+                }
+            });
+            fail("Walk did not fail, visited " + paths);
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), e.getMessage().contains("Could not read the tree"), is(true));
+        }
+    }
+
+    private void walk(String revision, TreeWalkHandler.Visitor visitor) {
+        TreeWalkHandler handler = new TreeWalkHandler(revision, visitor);
+        commandFactory(repository).builder(mock(Repository.class))
+                .command("cat-file")
+                .argument("--batch")
+                .inputHandler(handler)
+                .build(handler)
+                .call();
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sorted = new ArrayList<>(list);
+        sorted.sort(null);
+        return sorted;
+    }
+}
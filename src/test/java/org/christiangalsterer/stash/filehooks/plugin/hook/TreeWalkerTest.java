@@ -0,0 +1,187 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.christiangalsterer.stash.filehooks.plugin.hook.GitTestUtils.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+public class TreeWalkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File repository;
+    private TreeWalker treeWalker;
+    private TreeVerdictCache cache;
+    private List<String> sizedBlobs;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(isGitAvailable());
+        repository = folder.newFolder("repository");
+        git(repository, "init", "-q");
+        cache = new TreeVerdictCache(1000);
+        treeWalker = new TreeWalker(commandFactory(repository), cache);
+        sizedBlobs = new ArrayList<>();
+
+        write("docs/guide.txt", "guide");
+        write("src/main/App.java", "class App {}");
+        write("src/test/AppTest.java", "class AppTest {}");
+        commit("initial");
+    }
+
+    @Test
+    public void cachesCleanTreesAndSkipsThemOnTheNextWalk() throws Exception {
+        AuditSetting rules = new AuditSetting(100L, null);
+
+        assertTrue(walk("HEAD", rules).isEmpty());
+        assertTrue(isClean("HEAD", "", rules));
+        assertTrue(isClean("HEAD", "src/main/", rules));
+        assertThat(cache.size(), is(5L));
+
+        write("src/test/AppTest.java", "class AppTest { }");
+        commit("change test");
+        sizedBlobs.clear();
+
+        assertTrue(walk("HEAD", rules).isEmpty());
+        // Only the changed blob is checked again, the trees of unchanged directories are skipped
+        assertThat(sizedBlobs, is(Collections.singletonList(git(repository, "rev-parse", "HEAD:src/test/AppTest.java").get(0))));
+        assertTrue(isClean("HEAD", "", rules));
+        assertTrue(isClean("HEAD", "src/test/", rules));
+    }
+
+    @Test
+    public void doesNotCacheTreesContainingViolations() throws Exception {
+        write("src/main/tool.exe", "binary");
+        commit("add tool");
+        AuditSetting rules = new AuditSetting(null, "\\.exe$");
+
+        List<AuditViolation> violations = walk("HEAD", rules);
+
+        assertThat(violations.size(), is(1));
+        assertThat(violations.get(0).getPath(), is("src/main/tool.exe"));
+        assertFalse(isClean("HEAD", "", rules));
+        assertFalse(isClean("HEAD", "src/", rules));
+        assertFalse(isClean("HEAD", "src/main/", rules));
+        assertTrue(isClean("HEAD", "src/test/", rules));
+        assertTrue(isClean("HEAD", "docs/", rules));
+
+        // Violations are reported again as their trees are read again
+        assertThat(walk("HEAD", rules).size(), is(1));
+    }
+
+    @Test
+    public void doesNotCacheTreesWithBlobsWhichCouldNotBeSized() throws Exception {
+        AuditSetting rules = new AuditSetting(100L, null);
+
+        assertTrue(treeWalker.walk(mock(Repository.class), "HEAD", rules, ids -> new HashMap<>()).isEmpty());
+
+        assertFalse(isClean("HEAD", "", rules));
+        assertFalse(isClean("HEAD", "docs/", rules));
+        assertFalse(isClean("HEAD", "src/", rules));
+    }
+
+    @Test
+    public void cachesNothingIfATreeCannotBeRead() throws Exception {
+        AuditSetting rules = new AuditSetting(100L, null);
+        String subtreeId = git(repository, "rev-parse", "HEAD:src/main").get(0);
+        String root = git(repository, "rev-parse", "HEAD^{tree}").get(0);
+        assertTrue(new File(repository, ".git/objects/" + subtreeId.substring(0, 2) + "/" + subtreeId.substring(2)).delete());
+
+        try {
+            walk("HEAD", rules);
+            fail("Walk did not fail");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertThat(cache.size(), is(0L));
+        assertFalse(cache.isClean(root, "", rules));
+    }
+
+    @Test
+    public void keepsVerdictsOfDifferentRulesApart() throws Exception {
+        assertTrue(walk("HEAD", new AuditSetting(100L, null)).isEmpty());
+
+        List<AuditViolation> violations = walk("HEAD", new AuditSetting(3L, null));
+
+        assertThat(violations.size(), is(3));
+    }
+
+    @Test
+    public void walksTheTreesOfSeveralCommitsInOneGo() throws Exception {
+        write("src/main/tool.exe", "binary");
+        commit("add tool");
+        write("docs/manual.txt", "manual");
+        commit("add manual");
+        FileNameHookSetting rules = new FileNameHookSetting("\\.exe$", "^docs/", null);
+
+        List<AuditViolation> violations = treeWalker.walk(mock(Repository.class), java.util.Arrays.asList("HEAD~2", "HEAD~1", "HEAD"),
+                rules, ids -> new HashMap<>());
+
+        // The subtree with the violation is shared by two of the commits, but read only once
+        assertThat(violations.size(), is(1));
+        assertThat(violations.get(0).getPath(), is("src/main/tool.exe"));
+        assertThat(violations.get(0).getReason(), is(AuditViolation.Reason.NAME));
+        assertTrue(cache.isClean(git(repository, "rev-parse", "HEAD~2^{tree}").get(0), "", rules));
+        assertFalse(cache.isClean(git(repository, "rev-parse", "HEAD^{tree}").get(0), "", rules));
+    }
+
+    @Test
+    public void limitsSizesOfMatchingPathsOnly() throws Exception {
+        FileSizeHookSetting rules = new FileSizeHookSetting(5L, "\\.java$", null, null);
+
+        List<AuditViolation> violations = walk("HEAD", rules);
+
+        assertThat(violations.size(), is(2));
+        // Only the blobs of matching paths are sized
+        assertThat(sizedBlobs.size(), is(2));
+    }
+
+    private List<AuditViolation> walk(String commitish, TreeRules rules) {
+        return treeWalker.walk(mock(Repository.class), commitish, rules, ids -> {
+            Map<String, Long> sizes = new HashMap<>();
+            for (String id : ids) {
+                sizedBlobs.add(id);
+                sizes.put(id, Long.valueOf(gitUnchecked("cat-file", "-s", id)));
+            }
+            return sizes;
+        });
+    }
+
+    private boolean isClean(String commitish, String path, TreeRules rules) throws Exception {
+        String treeId = git(repository, "rev-parse", commitish + ":" + path).get(0);
+        return cache.isClean(treeId, path, rules);
+    }
+
+    private String gitUnchecked(String... args) {
+        try {
+            return git(repository, args).get(0);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(String path, String content) throws Exception {
+        GitTestUtils.write(new File(repository, path), content);
+    }
+
+    private void commit(String message) throws Exception {
+        git(repository, "add", "-A");
+        git(repository, "commit", "-q", "-m", message);
+    }
+}
@@ -0,0 +1,65 @@
+package org.christiangalsterer.stash.filehooks.plugin.hook;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.*;
+
+public class ViolationReporterTest {
+
+    @Test
+    public void noOutputWithoutViolations() throws Exception {
+        StringWriter out = new StringWriter();
+        ViolationReporter reporter = newReporter(out, 10);
+
+        reporter.finish();
+
+        assertFalse(reporter.hasViolations());
+        assertThat(out.toString(), is(""));
+    }
+
+    @Test
+    public void capsDetailLinesAndGroupsTheRest() throws Exception {
+        StringWriter out = new StringWriter();
+        ViolationReporter reporter = newReporter(out, 2);
+
+        for (int i = 0; i < 5; i++) {
+            reporter.report("assets/image" + i + ".png", 100, "violation " + i);
+        }
+        reporter.report("lib/tool.jar", 50, "violation jar");
+        reporter.finish();
+
+        String output = out.toString();
+        assertTrue(reporter.hasViolations());
+        assertThat(output, containsString("violation 1"));
+        assertFalse(output.contains("violation 2"));
+        assertThat(output, containsString("... and 4 more violations not shown."));
+        assertThat(output, containsString("assets/*.png: 5 files, 500 bytes"));
+        assertThat(output, containsString("lib/*.jar: 1 files, 50 bytes"));
+    }
+
+    @Test
+    public void summarizeIsBounded() throws Exception {
+        String summary = ViolationReporter.summarize(Arrays.asList("a.txt", "docs/b.md", "docs/c.md"), 1);
+
+        assertThat(summary, is("a.txt and 2 more (2 in docs/*.md)"));
+    }
+
+    @Test
+    public void groupByDirectoryAndExtension() throws Exception {
+        assertThat(ViolationReporter.getGroup("src/main/Foo.java"), is("src/main/*.java"));
+        assertThat(ViolationReporter.getGroup("Makefile"), is("*"));
+        assertThat(ViolationReporter.getGroup("conf/.gitignore"), is("conf/*"));
+    }
+
+    private static ViolationReporter newReporter(StringWriter out, int maxDetailLines) {
+        return new ViolationReporter(new PrintWriter(out), Collections.singletonList("header"),
+                Collections.singletonList("footer"), maxDetailLines, 10);
+    }
+}